@@ -1,178 +1,642 @@
 package airDataBackendService.interpolation;
 
+import java.io.EOFException;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.List;
 
-public class MatAccess {
-	private double p1[][];
-	private double p2[][];
+import com.fasterxml.jackson.core.JsonGenerator;
 
-	public double lat[][];
-	public double lon[][];
+public class MatAccess {
+	/*
+	 * P1 and P2 grids in column-major order (rows = latitude, columns =
+	 * longitude). Either one may be null if only the other one has been read.
+	 */
+	private double p1[];
+	private double p2[];
+
+	private int rows;
+	private int cols;
+
+	/*
+	 * Every factor-th row and column of the original grid, see
+	 * {@link #downsample(int)}
+	 */
+	private int factor = 1;
+
+	/* Reduction factors of the precomputed levels of detail */
+	public static final int[] LEVELS = { 1, 2, 4, 8 };
+
+	private static final int GRID_FILE_MAGIC = 0x484D4150; // "HMAP"
+	private static final int GRID_FILE_VERSION = 1;
+
+	/* The grid covers 47°N - 55°N and 5°E - 16°E */
+	private static final double LAT_MIN = 47.0;
+	private static final double LAT_MAX = 55.0;
+	private static final double LON_MIN = 5.0;
+	private static final double LON_MAX = 16.0;
+	private static final double LAT_STEP = 0.002;
+	private static final double LON_STEP = 0.004;
 
 	public MatAccess(File file) {
-		double[][][] data = MatReader.read(file);
-		double[][][] meshGrid = MatReader.meshGrid();
-		p1 = data[0];
-		p2 = data[1];
-
-		lat = meshGrid[0];
-		lon = meshGrid[1];
+		this(MatReader.read(file));
 	}
 
 	public MatAccess(InputStream str) {
-		double[][][] data = MatReader.read(str);
-		double[][][] meshGrid = MatReader.meshGrid();
-		p1 = data[0];
-		p2 = data[1];
+		this(MatReader.read(str));
+	}
+
+	/**
+	 * Reads only one of the grids. False: P1 grid; True: P2 grid
+	 */
+	public MatAccess(InputStream str, boolean P1P2) {
+		this(readSingle(str, P1P2));
+	}
+
+	private MatAccess(MatFileReader.MLDouble[] data) {
+		if (data == null || (data[0] == null && data[1] == null)) {
+			throw new IllegalArgumentException("MAT-file does not contain grid_P1 or grid_P2");
+		}
+
+		MatFileReader.MLDouble any = data[0] != null ? data[0] : data[1];
+		rows = any.getM();
+		cols = any.getN();
+		p1 = data[0] != null ? data[0].getRealArray() : null;
+		p2 = data[1] != null ? data[1].getRealArray() : null;
+	}
+
+	private MatAccess(int factor, int rows, int cols, double[] p1, double[] p2) {
+		this.factor = factor;
+		this.rows = rows;
+		this.cols = cols;
+		this.p1 = p1;
+		this.p2 = p2;
+	}
+
+	private static MatFileReader.MLDouble[] readSingle(InputStream str, boolean P1P2) {
+		MatFileReader.MLDouble[] data = MatReader.read(str, P1P2 ? "grid_P2" : "grid_P1");
+		if (data == null) {
+			return null;
+		}
+		return P1P2 ? new MatFileReader.MLDouble[] { null, data[0] } : new MatFileReader.MLDouble[] { data[0], null };
+	}
+
+	/**
+	 * Approximate heap size of the decoded grids in bytes
+	 */
+	public long sizeInBytes() {
+		return gridSizeInBytes(p1) + gridSizeInBytes(p2);
+	}
 
-		lat = meshGrid[0];
-		lon = meshGrid[1];
+	private static long gridSizeInBytes(double[] grid) {
+		if (grid == null) {
+			return 0;
+		}
+		return (long) grid.length * Double.BYTES;
+	}
+
+	/**
+	 * Grids that have not been read don't restrict the points
+	 */
+	private static boolean isFinite(double[] grid, int index) {
+		return grid == null || Double.isFinite(grid[index]);
+	}
+
+	public boolean hasGrid(boolean P1P2) {
+		return (P1P2 ? p2 : p1) != null;
+	}
+
+	private int index(int i, int j) {
+		return i + j * rows;
 	}
 
 	public List<HeatmapPoint> pointArray(double lonMax, double latMax, double lonMin, double latMin, int posiblePoints,
 			boolean finish, boolean P1P2) {
-		List<HeatmapPoint> pList;
-		if (lonMax <= 16 && lonMin >= 5 && latMax <= 55 && latMin >= 47) {
-			int obererLatIndex = latToIndex(latMax);
-			int untererLatIndex = latToIndex(latMin);
-			int linkerLonIndex = lonToIndex(lonMin);
-			int rechterLonIndex = lonToIndex(lonMax);
+		List<HeatmapPoint> pList = new ArrayList<HeatmapPoint>();
+		try {
+			if (!visitPointArray(lonMax, latMax, lonMin, latMin, posiblePoints, finish, P1P2,
+					(lon, lat, val) -> pList.add(createHeatmapPoint(lon, lat, val)))) {
+				return null;
+			}
+		} catch (IOException e) {
+			// adding to a list doesn't throw
+			throw new UncheckedIOException(e);
+		}
+		return pList;
+	}
+
+	/**
+	 * Writes the same points as {@link #pointArray} as a JSON array of
+	 * {"x":lon,"y":lat,"v":value} objects without creating intermediate objects.
+	 */
+	public void writePointArray(JsonGenerator gen, double lonMax, double latMax, double lonMin, double latMin,
+			int posiblePoints, boolean finish, boolean P1P2) throws IOException {
+		if (!isWithinGrid(lonMax, latMax, lonMin, latMin)) {
+			throw new IllegalArgumentException("Außerhalb des Interpolations-Radius");
+		}
+
+		gen.writeStartArray();
+		visitPointArray(lonMax, latMax, lonMin, latMin, posiblePoints, finish, P1P2, (lon, lat, val) -> {
+			gen.writeStartObject();
+			gen.writeNumberField("x", lon);
+			gen.writeNumberField("y", lat);
+			gen.writeNumberField("v", trimValue(val));
+			gen.writeEndObject();
+		});
+		gen.writeEndArray();
+	}
+
+	private interface PointSink {
+		void accept(double lon, double lat, double val) throws IOException;
+	}
+
+	/**
+	 * Passes the points selected by {@link #pointArray} to the sink. Returns false
+	 * if the bounding box is outside the grid.
+	 */
+	private boolean visitPointArray(double lonMax, double latMax, double lonMin, double latMin, int posiblePoints,
+			boolean finish, boolean P1P2, PointSink sink) throws IOException {
+		if (!hasGrid(P1P2)) {
+			throw new IllegalStateException("The " + (P1P2 ? "P2" : "P1") + " grid has not been read");
+		}
+		if (isWithinGrid(lonMax, latMax, lonMin, latMin)) {
+			// only use rows and columns within the bounding box
+			int obererLatIndex = Math.min(rows - 1, latToIndex(latMax));
+			int untererLatIndex = latToIndexCeil(latMin);
+			int linkerLonIndex = lonToIndexCeil(lonMin);
+			int rechterLonIndex = Math.min(cols - 1, lonToIndex(lonMax));
 
 			int hight = (obererLatIndex - untererLatIndex + 1);
 			int width = (rechterLonIndex - linkerLonIndex + 1);
+			if (hight <= 0 || width <= 0) {
+				// the bounding box lies between two rows or columns
+				return true;
+			}
 			int fieldSize = hight * width;
 
 			if (fieldSize <= posiblePoints) {
-				pList = new ArrayList<HeatmapPoint>();
 				double val;
-				for (int i = 0; i <= hight; i++) {
-					for (int j = 0; j <= width; j++) {
-						if (Double.isFinite(p1[i + untererLatIndex][j + linkerLonIndex])
-								&& Double.isFinite(p2[i + untererLatIndex][j + linkerLonIndex])) {
+				for (int i = 0; i < hight; i++) {
+					for (int j = 0; j < width; j++) {
+						if (isFinite(p1, index(i + untererLatIndex, j + linkerLonIndex))
+								&& isFinite(p2, index(i + untererLatIndex, j + linkerLonIndex))) {
 
 							if (P1P2 == false) {
-								val = p1[i + untererLatIndex][j + linkerLonIndex];
+								val = p1[index(i + untererLatIndex, j + linkerLonIndex)];
 							} else {
-								val = p2[i + untererLatIndex][j + linkerLonIndex];
+								val = p2[index(i + untererLatIndex, j + linkerLonIndex)];
 							}
-							HeatmapPoint point = createHeatmapPoint(lon[i + untererLatIndex][j + linkerLonIndex],
-									lat[i + untererLatIndex][j + linkerLonIndex], val);
-
-							pList.add(point);
+							sink.accept(longitude(j + linkerLonIndex),
+									latitude(i + untererLatIndex), val);
 						}
 					}
 				}
-				return pList;
+				return true;
 			} else {
 				int reduce = (int) (Math.ceil(((double) fieldSize) / ((double) posiblePoints)));
 				int[] dist = bestDistance(reduce);
-				pList = new ArrayList<HeatmapPoint>();
 				double val;
 
-				for (int i = 0; i <= hight; i = i + dist[0]) {
+				for (int i = 0; i < hight; i = i + dist[0]) {
 					int h = i;
 
-					for (int j = 0; j <= width; j = j + (dist[1] * 2)) {
-						if (Double.isFinite(p1[h + untererLatIndex][j + linkerLonIndex])
-								&& Double.isFinite(p2[h + untererLatIndex][j + linkerLonIndex])) {
+					for (int j = 0; j < width; j = j + (dist[1] * 2)) {
+						if (isFinite(p1, index(h + untererLatIndex, j + linkerLonIndex))
+								&& isFinite(p2, index(h + untererLatIndex, j + linkerLonIndex))) {
 
 							if (P1P2 == false) {
-								val = p1[h + untererLatIndex][j + linkerLonIndex];
+								val = p1[index(h + untererLatIndex, j + linkerLonIndex)];
 							} else {
-								val = p2[h + untererLatIndex][j + linkerLonIndex];
+								val = p2[index(h + untererLatIndex, j + linkerLonIndex)];
 							}
-							HeatmapPoint point = createHeatmapPoint(lon[h + untererLatIndex][j + linkerLonIndex],
-									lat[h + untererLatIndex][j + linkerLonIndex], val);
-
-							pList.add(point);
+							sink.accept(longitude(j + linkerLonIndex),
+									latitude(h + untererLatIndex), val);
 
 						}
 					}
 
 					h = h + (dist[0] / 2);
-					if (h <= hight) {
-						for (int j = dist[1]; j <= width; j = j + (dist[1] * 2)) {
-							if (Double.isFinite(p1[h + untererLatIndex][j + linkerLonIndex])
-									&& Double.isFinite(p2[h + untererLatIndex][j + linkerLonIndex])) {
+					if (h < hight) {
+						for (int j = dist[1]; j < width; j = j + (dist[1] * 2)) {
+							if (isFinite(p1, index(h + untererLatIndex, j + linkerLonIndex))
+									&& isFinite(p2, index(h + untererLatIndex, j + linkerLonIndex))) {
 								if (P1P2 == false) {
-									val = p1[h + untererLatIndex][j + linkerLonIndex];
+									val = p1[index(h + untererLatIndex, j + linkerLonIndex)];
 								} else {
-									val = p2[h + untererLatIndex][j + linkerLonIndex];
+									val = p2[index(h + untererLatIndex, j + linkerLonIndex)];
 								}
-								HeatmapPoint point = createHeatmapPoint(lon[h + untererLatIndex][j + linkerLonIndex],
-										lat[h + untererLatIndex][j + linkerLonIndex], val);
-
-								pList.add(point);
+								sink.accept(longitude(j + linkerLonIndex),
+										latitude(h + untererLatIndex), val);
 
 							}
 						}
 					}
 
 					if (finish == true) {
-						if (Double.isFinite(p1[i + untererLatIndex][rechterLonIndex])
-								&& Double.isFinite(p2[h + untererLatIndex][rechterLonIndex])) {
+						if (isFinite(p1, index(i + untererLatIndex, rechterLonIndex))
+								&& isFinite(p2, index(i + untererLatIndex, rechterLonIndex))) {
 							if (P1P2 == false) {
-								val = p1[i + untererLatIndex][rechterLonIndex];
+								val = p1[index(i + untererLatIndex, rechterLonIndex)];
 							} else {
-								val = p2[i + untererLatIndex][rechterLonIndex];
+								val = p2[index(i + untererLatIndex, rechterLonIndex)];
 							}
-							HeatmapPoint point = createHeatmapPoint(lon[i + untererLatIndex][rechterLonIndex],
-									lat[i + untererLatIndex][rechterLonIndex], val);
-
-							pList.add(point);
+							sink.accept(longitude(rechterLonIndex),
+									latitude(i + untererLatIndex), val);
 
 						}
 					}
 				}
 				if (finish == true) {
-					for (int j = 0; j <= width; j = j + (dist[1] * 2)) {
-						if (Double.isFinite(p1[obererLatIndex][j + linkerLonIndex])
-								&& Double.isFinite(p2[obererLatIndex][j + linkerLonIndex])) {
+					for (int j = 0; j < width; j = j + (dist[1] * 2)) {
+						if (isFinite(p1, index(obererLatIndex, j + linkerLonIndex))
+								&& isFinite(p2, index(obererLatIndex, j + linkerLonIndex))) {
 							if (P1P2 == false) {
-								val = p1[obererLatIndex][j + linkerLonIndex];
+								val = p1[index(obererLatIndex, j + linkerLonIndex)];
 							} else {
-								val = p2[obererLatIndex][j + linkerLonIndex];
+								val = p2[index(obererLatIndex, j + linkerLonIndex)];
 							}
-							HeatmapPoint point = createHeatmapPoint(lon[obererLatIndex][j + linkerLonIndex],
-									lat[obererLatIndex][j + linkerLonIndex], val);
-
-							pList.add(point);
+							sink.accept(longitude(j + linkerLonIndex),
+									latitude(obererLatIndex), val);
 
 						}
 					}
 
-					if (Double.isFinite(p1[obererLatIndex][rechterLonIndex])
-							&& Double.isFinite(p2[obererLatIndex][rechterLonIndex])) {
+					if (isFinite(p1, index(obererLatIndex, rechterLonIndex))
+							&& isFinite(p2, index(obererLatIndex, rechterLonIndex))) {
 						if (P1P2 == false) {
-							val = p1[obererLatIndex][rechterLonIndex];
+							val = p1[index(obererLatIndex, rechterLonIndex)];
 						} else {
-							val = p2[obererLatIndex][rechterLonIndex];
+							val = p2[index(obererLatIndex, rechterLonIndex)];
 						}
-						HeatmapPoint point = createHeatmapPoint(lon[obererLatIndex][rechterLonIndex],
-								lat[obererLatIndex][rechterLonIndex], val);
-
-						pList.add(point);
+						sink.accept(longitude(rechterLonIndex),
+								latitude(obererLatIndex), val);
 
 					}
 				}
-				return pList;
+				return true;
 			}
 		} else {
 			System.out.println("Außerhalb des Interpolations-Radius");
-			return null;
+			return false;
 		}
 
 	}
 
+	/**
+	 * Latitude of the grid row with the given index (rounded to three decimals)
+	 */
+	public static double latAt(int i) {
+		return Math.round((LAT_MIN + LAT_STEP * i) * 1000.0) / 1000.0;
+	}
+
+	/**
+	 * Longitude of the grid column with the given index (truncated to three
+	 * decimals)
+	 */
+	public static double lonAt(int j) {
+		int temp = (int) ((LON_MIN + LON_STEP * j) * 1000.0);
+		return ((double) temp) / 1000.0;
+	}
+
+	/**
+	 * Latitude of a row of this level
+	 */
+	public double latitude(int i) {
+		return latAt(i * factor);
+	}
+
+	/**
+	 * Longitude of a column of this level
+	 */
+	public double longitude(int j) {
+		return lonAt(j * factor);
+	}
+
 	private int latToIndex(double i) {
-		return (int) ((i - 47.0) / 0.002);
+		return (int) ((i - LAT_MIN) / (LAT_STEP * factor) + 1e-9);
 	}
 
 	public int lonToIndex(double i) {
-		return (int) ((i - 5.0) / 0.004);
+		return (int) ((i - LON_MIN) / (LON_STEP * factor) + 1e-9);
+	}
+
+	/**
+	 * True if the bounding box is not empty and lies within the grid (47°N - 55°N
+	 * and 5°E - 16°E)
+	 */
+	public static boolean isWithinGrid(double lonMax, double latMax, double lonMin, double latMin) {
+		return lonMin < lonMax && latMin < latMax && lonMin >= LON_MIN && lonMax <= LON_MAX && latMin >= LAT_MIN
+				&& latMax <= LAT_MAX;
+	}
+
+	/**
+	 * Index of the first row at or above the latitude
+	 */
+	private int latToIndexCeil(double i) {
+		return (int) Math.ceil((i - LAT_MIN) / (LAT_STEP * factor) - 1e-9);
+	}
+
+	/**
+	 * Index of the first column at or east of the longitude
+	 */
+	private int lonToIndexCeil(double i) {
+		return (int) Math.ceil((i - LON_MIN) / (LON_STEP * factor) - 1e-9);
+	}
+
+	public int getFactor() {
+		return factor;
+	}
+
+	/**
+	 * Returns the reduction factor of the coarsest level of detail whose spacing
+	 * is not larger than latStep and lonStep (in degrees)
+	 */
+	public static int levelForStep(double latStep, double lonStep) {
+		for (int l = LEVELS.length - 1; l > 0; l--) {
+			if (LAT_STEP * LEVELS[l] <= latStep && LON_STEP * LEVELS[l] <= lonStep) {
+				return LEVELS[l];
+			}
+		}
+		return LEVELS[0];
+	}
+
+	/**
+	 * Smallest row stride of this level whose spacing is at least latStep
+	 */
+	public int rowStrideForStep(double latStep) {
+		return Math.max(1, (int) Math.ceil(latStep / (LAT_STEP * factor) - 1e-9));
+	}
+
+	/**
+	 * Smallest column stride of this level whose spacing is at least lonStep
+	 */
+	public int colStrideForStep(double lonStep) {
+		return Math.max(1, (int) Math.ceil(lonStep / (LON_STEP * factor) - 1e-9));
+	}
+
+	/**
+	 * Returns the points of every rowStride-th row and colStride-th column
+	 * (counted from the grid origin) that lie within [latMin, latMax) and
+	 * [lonMin, lonMax). Unlike {@link #pointArray} the points of adjacent boxes
+	 * neither overlap nor leave gaps, which makes it suitable for tiles.
+	 */
+	public List<HeatmapPoint> gridPoints(double lonMax, double latMax, double lonMin, double latMin, int rowStride,
+			int colStride, boolean P1P2) {
+		double[] grid = selectedGrid(P1P2);
+		int[] w = window(lonMax, latMax, lonMin, latMin, rowStride, colStride);
+
+		List<HeatmapPoint> pList = new ArrayList<HeatmapPoint>();
+		for (int i = w[0]; i <= w[1]; i += rowStride) {
+			for (int j = w[2]; j <= w[3]; j += colStride) {
+				if (isFinite(p1, index(i, j)) && isFinite(p2, index(i, j))) {
+					pList.add(createHeatmapPoint(longitude(j), latitude(i), grid[index(i, j)]));
+				}
+			}
+		}
+		return pList;
+	}
+
+	private double[] selectedGrid(boolean P1P2) {
+		double[] grid = P1P2 ? p2 : p1;
+		if (grid == null) {
+			throw new IllegalStateException("The " + (P1P2 ? "P2" : "P1") + " grid has not been read");
+		}
+		return grid;
+	}
+
+	/**
+	 * First and last row and column within [latMin, latMax) and [lonMin, lonMax),
+	 * aligned to the strides so that adjacent boxes use the same rows and columns
+	 */
+	private int[] window(double lonMax, double latMax, double lonMin, double latMin, int rowStride, int colStride) {
+		int firstRow = Math.max(0, latToIndexCeil(latMin));
+		int lastRow = Math.min(rows - 1, latToIndexCeil(latMax) - 1);
+		int firstCol = Math.max(0, lonToIndexCeil(lonMin));
+		int lastCol = Math.min(cols - 1, lonToIndexCeil(lonMax) - 1);
+
+		firstRow = (firstRow + rowStride - 1) / rowStride * rowStride;
+		firstCol = (firstCol + colStride - 1) / colStride * colStride;
+
+		return new int[] { firstRow, lastRow, firstCol, lastCol };
+	}
+
+	/**
+	 * Smallest stride (for rows and columns) that leaves at most maxPoints points
+	 * of this level within the bounding box
+	 */
+	public int strideFor(double lonMax, double latMax, double lonMin, double latMin, int maxPoints) {
+		int[] w = window(lonMax, latMax, lonMin, latMin, 1, 1);
+		long cells = (long) Math.max(0, w[1] - w[0] + 1) * Math.max(0, w[3] - w[2] + 1);
+
+		int stride = Math.max(1, (int) Math.sqrt((double) cells / maxPoints));
+		while (countSteps(w[0], w[1], stride) * countSteps(w[2], w[3], stride) > maxPoints) {
+			stride++;
+		}
+		return stride;
+	}
+
+	private static long countSteps(int first, int last, int stride) {
+		if (last < first) {
+			return 0;
+		}
+		// the first index gets aligned to the stride
+		first = (first + stride - 1) / stride * stride;
+		return last < first ? 0 : (last - first) / stride + 1;
+	}
+
+	/**
+	 * Returns the reduction factor of the coarsest level of detail that still has
+	 * at least maxPoints cells within the bounding box
+	 */
+	public static int levelForGrid(double lonMax, double latMax, double lonMin, double latMin, int maxPoints) {
+		int latCells = (int) ((latMax - latMin) / LAT_STEP);
+		int lonCells = (int) ((lonMax - lonMin) / LON_STEP);
+
+		for (int l = LEVELS.length - 1; l > 0; l--) {
+			int factor = LEVELS[l];
+			if ((long) (latCells / factor) * (lonCells / factor) >= maxPoints) {
+				return factor;
+			}
+		}
+		return LEVELS[0];
+	}
+
+	/* No data in the quantized grid */
+	public static final int QUANTIZED_NO_DATA = 0xFFFF;
+
+	/**
+	 * Writes the same points as {@link #gridPoints} as a regular grid of
+	 * quantized values (little endian):
+	 * 
+	 * <pre>
+	 * int32   number of rows (south to north)
+	 * int32   number of columns (west to east)
+	 * float64 latitude of the first row
+	 * float64 longitude of the first column
+	 * float64 latitude step between rows
+	 * float64 longitude step between columns
+	 * float64 scale
+	 * uint16  values, row by row; value = q * scale, 0xFFFF = no data
+	 * </pre>
+	 * 
+	 * The scale is 0.01 (the precision of the JSON points) unless the largest
+	 * value doesn't fit into 16 bits.
+	 */
+	public void writeQuantized(OutputStream out, double lonMax, double latMax, double lonMin, double latMin,
+			int stride, boolean P1P2) throws IOException {
+		double[] grid = selectedGrid(P1P2);
+		int[] w = window(lonMax, latMax, lonMin, latMin, stride, stride);
+
+		int outRows = (int) countSteps(w[0], w[1], stride);
+		int outCols = (int) countSteps(w[2], w[3], stride);
+
+		double max = 0;
+		for (int j = w[2]; j <= w[3]; j += stride) {
+			for (int i = w[0]; i <= w[1]; i += stride) {
+				if (isFinite(p1, index(i, j)) && isFinite(p2, index(i, j))) {
+					max = Math.max(max, grid[index(i, j)]);
+				}
+			}
+		}
+		double scale = Math.max(0.01, max / (QUANTIZED_NO_DATA - 1));
+
+		ByteBuffer buf = ByteBuffer.allocate(16 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(outRows).putInt(outCols);
+		buf.putDouble(outRows > 0 ? latitude(w[0]) : LAT_MIN).putDouble(outCols > 0 ? longitude(w[2]) : LON_MIN);
+		buf.putDouble(LAT_STEP * factor * stride).putDouble(LON_STEP * factor * stride);
+		buf.putDouble(scale);
+
+		for (int i = w[0]; i <= w[1]; i += stride) {
+			for (int j = w[2]; j <= w[3]; j += stride) {
+				if (buf.remaining() < Short.BYTES) {
+					out.write(buf.array(), 0, buf.position());
+					buf.clear();
+				}
+
+				int q = QUANTIZED_NO_DATA;
+				if (isFinite(p1, index(i, j)) && isFinite(p2, index(i, j))) {
+					q = (int) Math.min(QUANTIZED_NO_DATA - 1, Math.max(0, Math.round(grid[index(i, j)] / scale)));
+				}
+				buf.putShort((short) q);
+			}
+		}
+		out.write(buf.array(), 0, buf.position());
+		out.flush();
+	}
+
+	/**
+	 * Returns the reduction factor of the coarsest level of detail that still has
+	 * at least 16 cells per requested point within the bounding box. Below that
+	 * the spacing chosen by {@link #bestDistance(int)} is too coarse to get close
+	 * to posiblePoints.
+	 */
+	public static int levelFor(double lonMax, double latMax, double lonMin, double latMin, int posiblePoints) {
+		int latCells = (int) ((latMax - latMin) / LAT_STEP);
+		int lonCells = (int) ((lonMax - lonMin) / LON_STEP);
+
+		for (int l = LEVELS.length - 1; l > 0; l--) {
+			int factor = LEVELS[l];
+			if ((long) (latCells / factor + 1) * (lonCells / factor + 1) >= 16L * posiblePoints) {
+				return factor;
+			}
+		}
+		return LEVELS[0];
+	}
+
+	/**
+	 * Creates a coarser level of detail that contains every n-th row and column
+	 * of this grid (n = reduce), starting with the first one
+	 */
+	public MatAccess downsample(int reduce) {
+		int newRows = (rows - 1) / reduce + 1;
+		int newCols = (cols - 1) / reduce + 1;
+
+		return new MatAccess(factor * reduce, newRows, newCols, downsample(p1, reduce, newRows, newCols),
+				downsample(p2, reduce, newRows, newCols));
+	}
+
+	private double[] downsample(double[] grid, int reduce, int newRows, int newCols) {
+		if (grid == null) {
+			return null;
+		}
+
+		double[] result = new double[newRows * newCols];
+		for (int j = 0; j < newCols; j++) {
+			int offset = j * reduce * rows;
+			for (int i = 0; i < newRows; i++) {
+				result[i + j * newRows] = grid[offset + i * reduce];
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Writes one of the grids of this level (False: P1; True: P2) in a compact
+	 * binary format that can be read by {@link #readGrid(InputStream, boolean)}
+	 */
+	public void writeGrid(OutputStream out, boolean P1P2) throws IOException {
+		double[] grid = P1P2 ? p2 : p1;
+		if (grid == null) {
+			throw new IllegalStateException("The " + (P1P2 ? "P2" : "P1") + " grid has not been read");
+		}
+
+		ByteBuffer buf = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(GRID_FILE_MAGIC).putInt(GRID_FILE_VERSION).putInt(factor).putInt(rows).putInt(cols);
+
+		for (double value : grid) {
+			if (buf.remaining() < Double.BYTES) {
+				out.write(buf.array(), 0, buf.position());
+				buf.clear();
+			}
+			buf.putDouble(value);
+		}
+		out.write(buf.array(), 0, buf.position());
+		out.flush();
+	}
+
+	/**
+	 * Reads a grid written by {@link #writeGrid(OutputStream, boolean)}. The
+	 * result only contains this grid.
+	 */
+	public static MatAccess readGrid(InputStream in, boolean P1P2) throws IOException {
+		byte[] chunk = new byte[64 * 1024];
+		ByteBuffer buf = ByteBuffer.wrap(chunk).order(ByteOrder.LITTLE_ENDIAN);
+
+		readFully(in, chunk, 5 * Integer.BYTES);
+		if (buf.getInt(0) != GRID_FILE_MAGIC || buf.getInt(4) != GRID_FILE_VERSION) {
+			throw new IOException("Not a heatmap grid file");
+		}
+		int factor = buf.getInt(8);
+		int rows = buf.getInt(12);
+		int cols = buf.getInt(16);
+
+		double[] grid = new double[rows * cols];
+		int perChunk = chunk.length / Double.BYTES;
+		for (int off = 0; off < grid.length; off += perChunk) {
+			int length = Math.min(perChunk, grid.length - off);
+			readFully(in, chunk, length * Double.BYTES);
+			buf.clear();
+			buf.asDoubleBuffer().get(grid, off, length);
+		}
+
+		return P1P2 ? new MatAccess(factor, rows, cols, null, grid) : new MatAccess(factor, rows, cols, grid, null);
+	}
+
+	private static void readFully(InputStream in, byte[] b, int len) throws IOException {
+		int off = 0;
+		while (off < len) {
+			int n = in.read(b, off, len - off);
+			if (n == -1) {
+				throw new EOFException("Unexpected end of heatmap grid file");
+			}
+			off += n;
+		}
 	}
 
 	private int[] bestDistance(int n) {
@@ -194,13 +658,17 @@ public class MatAccess {
 	public HeatmapPoint createHeatmapPoint(double lon, double lat, double val) {
 		HeatmapPoint point = new HeatmapPoint();
 
-		// trim the value to two decimal points
-		int temp = (int) (val * 100.0);
-		double valueWithLessDecimals = ((double) temp) / 100.0;
-
 		point.lon = lon;
 		point.lat = lat;
-		point.value = valueWithLessDecimals;
+		point.value = trimValue(val);
 		return point;
 	}
+
+	/**
+	 * trim the value to two decimal points
+	 */
+	private static double trimValue(double val) {
+		int temp = (int) (val * 100.0);
+		return ((double) temp) / 100.0;
+	}
 }
@@ -1,16 +1,19 @@
 package airDataBackendService.interpolation;
 
-import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.nio.ByteOrder;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.io.RandomAccessFile;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 
 /**
@@ -113,6 +116,10 @@ public class MatFileReader
      * Container for red <code>MLArray</code>s
      */
     private Map<String, MLDouble> data;
+    /**
+     * Names of the arrays that should be read, <code>null</code> reads all arrays.
+     */
+    private Set<String> names;
     /**
      * Tells how bytes are organized in the buffer.
      */
@@ -140,54 +147,474 @@ public class MatFileReader
         
         read(str);
     }
+    
+    /**
+     * Reads only the arrays with the given names from the stream. The data of
+     * all other arrays is skipped without being decoded, compressed arrays are
+     * only inflated as far as needed to read their name.
+     * 
+     * @param str the MAT-file stream
+     * @param names the names of the arrays to read
+     * @throws IOException when error occurred while processing the stream.
+     */
+    public MatFileReader(InputStream str, Set<String> names) throws IOException
+    {
+        
+        read(str, names);
+    }
 
     /**
-     * Read a mat file from a stream. Internally this will read the stream fully
-     * into memory before parsing it.
+     * Read a mat file from a stream. The stream is parsed element by element
+     * while it is read, <code>miCOMPRESSED</code> elements are inflated on the
+     * fly. Only the decoded arrays are kept in memory, their buffers are
+     * allocated once from the dimensions stored in the file.
+     * 
+     * The stream is not closed.
      * 
      * @param stream
      *            a valid MAT-file stream to be read
-     * @param filter
-     *            the array filter applied during reading
      * 
      * @return the same as <code>{@link #getContent()}</code>
-     * @see MatFileFilter
      * @throws IOException
      *             if error occurs during file processing
      */
     public synchronized Map<String, MLDouble> read(InputStream stream) throws IOException
+    {
+        return read(stream, null);
+    }
+    
+    /**
+     * Read the arrays with the given names from a stream, see
+     * <code>{@link #read(InputStream)}</code>. Reading stops as soon as all
+     * arrays have been found.
+     * 
+     * @param stream
+     *            a valid MAT-file stream to be read
+     * @param names
+     *            the names of the arrays to read, <code>null</code> to read all
+     *            arrays
+     * 
+     * @return the same as <code>{@link #getContent()}</code>
+     * @throws IOException
+     *             if error occurs during file processing
+     */
+    public synchronized Map<String, MLDouble> read(InputStream stream, Set<String> names) throws IOException
     {
     	data    = new LinkedHashMap<String, MLDouble>();
+    	this.names = names;
     	
-        ByteBuffer buf = null;
-        
-        ByteArrayOutputStream2 baos = new ByteArrayOutputStream2();
-        copy(stream, baos);
-        buf = ByteBuffer.wrap(baos.getBuf(), 0, baos.getCount());
+        MatInputStream in = new MatInputStream(stream);
 
         // read in file header
-        readHeader(buf);
+        readHeader(in);
 
-        while (buf.remaining() > 0)
+        while ((names == null || !data.keySet().containsAll(names)) && readData(in))
         {
-            readData(buf);
         }
 
         return data;
     }
     
-    static class ByteArrayOutputStream2 extends ByteArrayOutputStream
-	{
-	    public ByteArrayOutputStream2(){super();}
-	    public byte[] getBuf(){return buf;}
-	    public int getCount(){return count;}
-	}
+    /**
+     * Reads a single top level element from the stream. Compressed elements are
+     * inflated while they are parsed.
+     * 
+     * @param in -
+     *            input stream
+     * @return <code>false</code> if the end of the stream has been reached
+     * @throws IOException when error occurs while reading the stream.
+     */
+    private boolean readData( MatInputStream in ) throws IOException
+    {
+        if ( !in.hasMore() )
+        {
+            return false;
+        }
+        
+        MatStreamTag tag = new MatStreamTag(in);
+        switch ( tag.type )
+        {
+            case miCOMPRESSED:
+                BoundedInputStream compressed = new BoundedInputStream(in, tag.size);
+                Inflater inflater = new Inflater();
+                try
+                {
+                    MatInputStream inflated = new MatInputStream(
+                                    new InflaterInputStream(compressed, inflater, 64 * 1024), in.order);
+                    MatStreamTag matrixTag = new MatStreamTag(inflated);
+                    if ( matrixTag.type != miMATRIX )
+                    {
+                        throw new IOException("Incorrect data tag in compressed element: " + matrixTag.type);
+                    }
+                    readMatrixElement( inflated, matrixTag, false );
+                    
+                    // skip what's left of the compressed element without inflating it
+                    // (the data of an array that has not been requested, the zlib trailer)
+                    compressed.skipRemaining();
+                }
+                finally
+                {
+                    inflater.end();
+                }
+                break;
+            case miMATRIX:
+                readMatrixElement( in, tag, true );
+                break;
+            default:
+                throw new IOException("Incorrect data tag: " + tag.type);
+        }
+        return true;
+    }
+    
+    /**
+     * Reads a miMATRIX element (the tag has already been read) and skips
+     * whatever has not been consumed.
+     * 
+     * @param skipUnrequested - whether the rest of an array that has not been
+     *            requested should be skipped as well. Inflated streams don't
+     *            skip it, their caller skips the compressed bytes instead.
+     */
+    private void readMatrixElement( MatInputStream in, MatStreamTag tag, boolean skipUnrequested ) throws IOException
+    {
+        long end = in.position + tag.size;
+        
+        MLDouble element = readMatrix( in );
+        
+        if ( element == null && !skipUnrequested )
+        {
+            return;
+        }
+        
+        if ( element != null && !data.containsKey( element.name ) )
+        {
+            data.put( element.name, element );
+        }
+        
+        if ( in.position > end )
+        {
+            throw new IOException("Matrix was red past its end! " + ( in.position - end ) + " bytes too many.");
+        }
+        in.skipFully( end - in.position );
+    }
+    
+    /**
+     * Reads miMATRIX from the input stream. The real part is decoded straight
+     * into the array allocated from the dimension tag.
+     * 
+     * Returns <code>null</code> after reading the name if the array has not
+     * been requested.
+     * 
+     * @param in -
+     *            input stream
+     * @return - <code>MLArray</code> or <code>null</code>
+     * @throws IOException when error occurs while reading the stream.
+     */
+    private MLDouble readMatrix( MatInputStream in ) throws IOException
+    {
+        //read flags
+        int[] flags = new MatStreamTag(in).readToIntArray();
+        int attributes = ( flags.length != 0 ) ? flags[0] : 0;
+        int type = attributes & 0xff;
+        
+        //read Array dimension
+        int[] dims = new MatStreamTag(in).readToIntArray();
+        
+        //read array Name
+        String name = new MatStreamTag(in).readToString();
+        
+        //skipped by the caller
+        if ( names != null && !names.contains(name) )
+        {
+            return null;
+        }
+        
+        if ( type != 6 )
+        {
+            throw new IOException("Incorrect matlab array class");
+        }
+        
+        MLDouble mlArray = new MLDouble(name, dims, type, attributes);
+        //read real
+        new MatStreamTag(in).readToDoubleArray( mlArray.getRealArray() );
+        
+        return mlArray;
+    }
+    
+    /**
+     * Reads MAT-file header from a stream.
+     * 
+     * @param in
+     *            input stream
+     * @throws IOException
+     *             if reading from the stream fails or if this is not a valid
+     *             MAT-file
+     */
+    private void readHeader(MatInputStream in) throws IOException
+    {
+        //descriptive text 116 bytes, subsys data offset 8 bytes,
+        //version 2 bytes, endian indicator 2 bytes
+        byte[] header = new byte[128];
+        in.readFully(header, 0, header.length);
+        
+        readHeader(ByteBuffer.wrap(header));
+        in.order(byteOrder);
+    }
+    
+    /**
+     * TAG operator for streams.
+     * 
+     * Supports the small data element format in which the data is packed into
+     * the tag.
+     */
+    private static class MatStreamTag
+    {
+        private final MatInputStream in;
+        private final int type;
+        private final int size;
+        private final int padding;
+        
+        public MatStreamTag(MatInputStream in) throws IOException
+        {
+            this.in = in;
+            
+            int tmp = in.readInt();
+            if ( ( tmp >>> 16 ) != 0 )
+            {
+                //data packed in the tag
+                type = tmp & 0xffff;
+                size = tmp >>> 16;
+                padding = 4 - size;
+            }
+            else
+            {
+                type = tmp;
+                size = in.readInt();
+                padding = ( size % 8 != 0 ) ? 8 - size % 8 : 0;
+            }
+        }
+        
+        public int[] readToIntArray() throws IOException
+        {
+            int elements = size/sizeOf(type);
+            int[] ai = new int[elements];
+            
+            for ( int i = 0; i < elements; i++ )
+            {
+                ai[i] = (int) in.readNumber(type);
+            }
+            
+            in.skipFully( size - elements * sizeOf(type) + padding );
+            return ai;
+        }
+        
+        public String readToString() throws IOException
+        {
+            byte[] bytes = new byte[size];
+            in.readFully( bytes, 0, size );
+            in.skipFully( padding );
+            
+            return new String( bytes, "UTF-8" );
+        }
+        
+        public void readToDoubleArray( double[] dest ) throws IOException
+        {
+            int elements = size/sizeOf(type);
+            int length = Math.min(elements, dest.length);
+            
+            in.readDoubles( dest, length, type );
+            in.skipFully( size - length * sizeOf(type) + padding );
+        }
+    }
+    
+    /**
+     * Reads primitive values with the byte order of the MAT-file from a stream
+     * and keeps track of the number of bytes that have been consumed.
+     */
+    private static class MatInputStream
+    {
+        private final PushbackInputStream in;
+        private final byte[] scratch = new byte[8 * 1024];
+        private final ByteBuffer scratchBuffer = ByteBuffer.wrap(scratch);
+        private ByteOrder order = ByteOrder.BIG_ENDIAN;
+        private long position = 0;
+        
+        public MatInputStream(InputStream in)
+        {
+            this.in = new PushbackInputStream(in, 1);
+        }
+        
+        public MatInputStream(InputStream in, ByteOrder order)
+        {
+            this(in);
+            order(order);
+        }
+        
+        public void order(ByteOrder order)
+        {
+            this.order = order;
+            scratchBuffer.order(order);
+        }
+        
+        /**
+         * Returns <code>false</code> if the end of the stream has been reached.
+         */
+        public boolean hasMore() throws IOException
+        {
+            int b = in.read();
+            if ( b == -1 )
+            {
+                return false;
+            }
+            
+            in.unread(b);
+            return true;
+        }
+        
+        public void readFully(byte[] b, int off, int len) throws IOException
+        {
+            while ( len > 0 )
+            {
+                int n = in.read(b, off, len);
+                if ( n == -1 )
+                {
+                    throw new EOFException("Unexpected end of MAT-file");
+                }
+                off += n;
+                len -= n;
+                position += n;
+            }
+        }
+        
+        public int readInt() throws IOException
+        {
+            readFully(scratch, 0, 4);
+            return scratchBuffer.getInt(0);
+        }
+        
+        /**
+         * Reads a single value of the given MAT data type
+         */
+        public double readNumber(int type) throws IOException
+        {
+            readFully(scratch, 0, sizeOf(type));
+            return readNumber(type, 0);
+        }
+        
+        private double readNumber(int type, int offset)
+        {
+            switch ( type )
+            {
+                case miUINT8:
+                    return (double)( scratchBuffer.get(offset) & 0xFF);
+                case miINT8:
+                    return (double) scratchBuffer.get(offset);
+                case miUINT16:
+                    return (double)( scratchBuffer.getShort(offset) & 0xFFFF);
+                case miINT16:
+                    return (double) scratchBuffer.getShort(offset);
+                case miUINT32:
+                    return (double)( scratchBuffer.getInt(offset) & 0xFFFFFFFFL);
+                case miINT32:
+                    return (double) scratchBuffer.getInt(offset);
+                case miUINT64:
+                case miINT64:
+                    return (double) scratchBuffer.getLong(offset);
+                case miDOUBLE:
+                    return scratchBuffer.getDouble(offset);
+                default:
+                    throw new IllegalArgumentException("Unknown data type: " + type);
+            }
+        }
+        
+        /**
+         * Reads <code>count</code> values of the given MAT data type into
+         * <code>dest</code>, chunk by chunk.
+         */
+        public void readDoubles(double[] dest, int count, int type) throws IOException
+        {
+            int size = sizeOf(type);
+            int chunk = scratch.length / size;
+            
+            for ( int off = 0; off < count; off += chunk )
+            {
+                int length = Math.min(chunk, count - off);
+                readFully(scratch, 0, length * size);
+                
+                if ( type == miDOUBLE )
+                {
+                    scratchBuffer.clear();
+                    scratchBuffer.asDoubleBuffer().get(dest, off, length);
+                }
+                else
+                {
+                    for ( int i = 0; i < length; i++ )
+                    {
+                        dest[off + i] = readNumber(type, i * size);
+                    }
+                }
+            }
+        }
+        
+        public void skipFully(long n) throws IOException
+        {
+            while ( n > 0 )
+            {
+                long skipped = in.skip(n);
+                if ( skipped <= 0 )
+                {
+                    // skip is allowed to skip nothing, so fall back to reading
+                    if ( in.read() == -1 )
+                    {
+                        throw new EOFException("Unexpected end of MAT-file");
+                    }
+                    skipped = 1;
+                }
+                n -= skipped;
+                position += skipped;
+            }
+        }
+    }
     
-    private void copy(InputStream stream, ByteArrayOutputStream2 output) throws IOException {
-        final byte[] buffer = new byte[1024 * 4];
-        int n = 0;
-        while (-1 != (n = stream.read(buffer))) {
-            output.write(buffer, 0, n);
+    /**
+     * Limits an underlying <code>MatInputStream</code> to the bytes of a single
+     * element. Closing it does not close the underlying stream.
+     */
+    private static class BoundedInputStream extends InputStream
+    {
+        private final MatInputStream in;
+        private long remaining;
+        
+        public BoundedInputStream(MatInputStream in, long size)
+        {
+            this.in = in;
+            this.remaining = size;
+        }
+        
+        @Override
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if ( remaining <= 0 )
+            {
+                return -1;
+            }
+            
+            int n = (int) Math.min(len, remaining);
+            in.readFully(b, off, n);
+            remaining -= n;
+            return n;
+        }
+        
+        public void skipRemaining() throws IOException
+        {
+            in.skipFully(remaining);
+            remaining = 0;
         }
     }
     
@@ -396,8 +823,7 @@ public class MatFileReader
         	mlArray = new MLDouble(name, dims, type, attributes);
             //read real
             tag = new ISMatTag(buf);
-            tag.readToByteBuffer( ((MLDouble) mlArray).getRealByteBuffer(),
-                                        (MLDouble) mlArray );
+            tag.readToDoubleArray( mlArray.getRealArray() );
         }
         else
         {
@@ -596,10 +1022,10 @@ public class MatFileReader
             return MatFileReader.sizeOf(type);
         }
         
-        public void readToByteBuffer( ByteBuffer buff, MLDouble mlArray ) throws IOException
+        public void readToDoubleArray( double[] dest ) throws IOException
         {
             int elements = size/sizeOf();
-            mfis.readToByteBuffer( buff, elements, mlArray );
+            mfis.readToDoubleArray( dest, elements );
             mfis.skip( padding );
         }
         public byte[] readToByteArray() throws IOException
@@ -753,77 +1179,39 @@ public class MatFileReader
             }
 
             /**
-             * Reads the data into a <code>{@link ByteBuffer}</code>. This method is
-             * only supported for arrays with backing ByteBuffer (<code>{@link ByteStorageSupport}</code>).
+             * Reads the data into a <code>double[]</code> in a single pass.
+             * <code>miDOUBLE</code> data is bulk-copied from the buffer, other
+             * types are converted element by element.
              * 
              * @param dest
-             *            the destination <code>{@link ByteBuffer}</code>
+             *            the destination array
              * @param elements
-             *            the number of elements to read into a buffer
-             * @param mlArray
-             *            the backing <code>{@link ByteStorageSupport}</code> that
-             *            gives information how data should be interpreted
-             * @return reference to the destination <code>{@link ByteBuffer}</code>
+             *            the number of elements stored in the buffer
              * @throws IOException
              *             if buffer is under-fed, or another IO problem occurs
              */
-            public ByteBuffer readToByteBuffer(ByteBuffer dest, int elements,
-                            MLDouble mlArray) throws IOException
+            public void readToDoubleArray(double[] dest, int elements) throws IOException
             {
+                int length = Math.min(elements, dest.length);
+                int bufPos = buf.position();
                 
-                int bytesAllocated = mlArray.getBytesAllocated();
-                int size = elements * mlArray.getBytesAllocated();
-                
-                //direct buffer copy
-                if ( MatFileReader.sizeOf(type) == bytesAllocated && buf.order().equals(dest.order()) )
+                if ( type == miDOUBLE )
                 {
-                    int bufMaxSize = 1024;
-                    int bufSize = Math.min(buf.remaining(), bufMaxSize);
-                    int bufPos = buf.position();
-                    
-                    byte[] tmp = new byte[ bufSize ];
-                    
-                    while ( dest.remaining() > 0 )
-                    {
-                        int length = Math.min(dest.remaining(), tmp.length);
-                        buf.get( tmp, 0, length );
-                        dest.put( tmp, 0, length );
-                    }
-                    buf.position( bufPos + size );
+                    // the view shares the byte order of the buffer
+                    buf.asDoubleBuffer().get( dest, 0, length );
                 }
                 else
                 {
                     //because Matlab writes data not respectively to the declared
                     //matrix type, the reading is not straight forward (as above)
-                    Class<?> clazz = mlArray.getStorageClazz();
-                    while ( dest.remaining() > 0 )
+                    for ( int i = 0; i < length; i++ )
                     {
-                        if ( clazz.equals( Double.class) )
-                        {
-                            dest.putDouble( readDouble() );
-                        }
-                        else if ( clazz.equals( Byte.class) )
-                        {
-                            dest.put( readByte() );
-                        }
-                        else if ( clazz.equals( Integer.class) )
-                        {
-                            dest.putInt( readInt() );
-                        }
-                        else
-                        {
-                            throw new RuntimeException("Not supported buffer reader for " + clazz );
-                        }
+                        dest[i] = readDouble();
                     }
                 }
-                dest.rewind();
-                return dest;
+                buf.position( bufPos + elements * MatFileReader.sizeOf(type) );
             }
 
-            
-            
-            
-
         	public void skip(int padding) 
         	{
         		buf.position( buf.position() + padding );
@@ -904,9 +1292,8 @@ public class MatFileReader
         protected int type;
         
         
-    	private ByteBuffer real;
-        /** The buffer for creating Number from bytes */
-        private byte[] bytes;
+        /** Real values in column-major order */
+    	private double[] real;
     	
         /**
          * Normally this constructor is used only by MatFileReader and MatFileWriter
@@ -939,9 +1326,7 @@ public class MatFileReader
         
         public void allocate( )
         {
-            real = ByteBuffer.allocate( getSize()*getBytesAllocated());
-            
-            bytes = new byte[ getBytesAllocated() ];
+            real = new double[ getSize() ];
         }
         
         /* (non-Javadoc)
@@ -958,15 +1343,48 @@ public class MatFileReader
          */
         public double[][] getArray()
         {
-            double[][] result = new double[getM()][];
+            int rows = getM();
+            int cols = getN();
+            double[][] result = new double[rows][cols];
             
-            for ( int m = 0; m < getM(); m++ )
+            for ( int n = 0; n < cols; n++ )
             {
-               result[m] = new double[ getN() ];
-
-               for ( int n = 0; n < getN(); n++ )
+               int offset = n * rows;
+               for ( int m = 0; m < rows; m++ )
                {               
-                   result[m][n] = getReal(m,n);
+                   result[m][n] = real[offset + m];
+               }
+            }
+            return result;
+        }
+        /**
+         * Gets the real values as a flat array in column-major order, i.e.
+         * A(m,n) is stored at <code>m + n*getM()</code>. The array is not copied.
+         * 
+         * @return - flat real array
+         */
+        public double[] getRealArray()
+        {
+            return real;
+        }
+        /**
+         * Gets a copy of the real values as a flat array in row-major order, i.e.
+         * A(m,n) is stored at <code>m*getN() + n</code>.
+         * 
+         * @return - flat real array
+         */
+        public double[] getRowMajorArray()
+        {
+            int rows = getM();
+            int cols = getN();
+            double[] result = new double[ real.length ];
+            
+            for ( int n = 0; n < cols; n++ )
+            {
+               int offset = n * rows;
+               for ( int m = 0; m < rows; m++ )
+               {
+                   result[m * cols + n] = real[offset + m];
                }
             }
             return result;
@@ -991,24 +1409,7 @@ public class MatFileReader
         
         public double getReal( int index )
         {
-            return _get(real, index);
-        }
-        
-        private double _get( ByteBuffer buffer, int index )
-        {
-            buffer.position( getByteOffset(index) );
-            buffer.get( bytes, 0, bytes.length );
-            return buldFromBytes( bytes );
-        }
-        
-        private int getByteOffset( int index )
-        {
-            return index*getBytesAllocated();
-        }
-        
-        public ByteBuffer getRealByteBuffer()
-        {
-            return real;
+            return real[index];
         }
         
         
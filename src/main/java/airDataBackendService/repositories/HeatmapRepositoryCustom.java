@@ -1,9 +1,14 @@
 package airDataBackendService.repositories;
 
 import java.io.InputStream;
+import java.util.Date;
 
 public interface HeatmapRepositoryCustom {
   public InputStream findByFilename(String filename);
 
   public void store(InputStream content, String filename);
+
+  public void delete(String filename);
+
+  public Date findUploadDate(String filename);
 }
\ No newline at end of file
@@ -2,6 +2,7 @@ package airDataBackendService.repositories;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Date;
 
 import com.mongodb.client.gridfs.model.GridFSFile;
 
@@ -35,8 +36,24 @@ public class HeatmapRepositoryCustomImpl implements HeatmapRepositoryCustom {
   }
 
   public void store(InputStream content, String filename) {
+    delete(filename);
+    gridFsTemplate.store(content, filename);
+  }
+
+  public void delete(String filename) {
     Query query = new Query(Criteria.where("filename").is(filename));
     gridFsTemplate.delete(query);
-    gridFsTemplate.store(content, filename);
   }
-}
\ No newline at end of file
+
+  /**
+   * Returns when the file has been stored or null if there is no such file
+   */
+  public Date findUploadDate(String filename) {
+    GridFSFile file = gridFsTemplate.findOne(new Query(Criteria.where("filename").is(filename)));
+
+    if (file == null) {
+      return null;
+    }
+    return file.getUploadDate();
+  }
+}
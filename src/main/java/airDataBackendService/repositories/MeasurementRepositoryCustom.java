@@ -2,13 +2,20 @@ package airDataBackendService.repositories;
 
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
+import airDataBackendService.database.DailyMeasurements;
 import airDataBackendService.database.Measurement;
+import airDataBackendService.util.LongLongHashMap;
 
 public interface MeasurementRepositoryCustom {
   public List<Measurement> getBySensor(String sensor, long timestamp);
 
-  public List<Measurement> getBySensorSingleDay(String sensor, Date day);
+  public List<Measurement> getBySensorBetween(String sensor, long fromInSeconds, long toInSeconds);
 
-  public void addMeasurements(String sensor, Date day, List<Measurement> measurements);
+  public Map<String, Measurement> getClosestBySensor(Date day, long timestampInSeconds);
+
+  public int addMeasurements(List<DailyMeasurements> days);
+
+  public LongLongHashMap getLatestTimestamps(Date since);
 }
\ No newline at end of file
@@ -1,35 +1,37 @@
 package airDataBackendService.repositories;
 
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.TimeZone;
+import java.util.Map;
 import java.util.Date;
 
+import com.mongodb.bulk.BulkWriteResult;
+
+import org.bson.Document;
+
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.BulkOperations;
 import org.springframework.data.mongodb.core.MongoTemplate;
-
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationOperation;
+import org.springframework.data.mongodb.core.aggregation.ArrayOperators;
+import org.springframework.data.mongodb.core.aggregation.BooleanOperators;
+import org.springframework.data.mongodb.core.aggregation.ComparisonOperators;
+import org.springframework.data.mongodb.core.mapping.Field;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
 
 import airDataBackendService.database.DailyMeasurements;
 import airDataBackendService.database.Measurement;
+import airDataBackendService.util.LongLongHashMap;
 
 public class MeasurementRepositoryCustomImpl implements MeasurementRepositoryCustom {
   @Autowired
   MongoTemplate mongoTemplate;
 
-  private Date subtractDays(long timestampInMillis, int daysToSubtract) {
-    long daysToSubtractInMillis = daysToSubtract * 24 * 60 * 60 * 1000;
-    Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
-    calendar.setTimeInMillis(timestampInMillis - daysToSubtractInMillis);
-    calendar.set(calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH), calendar.get(Calendar.DAY_OF_MONTH), 0, 0,
-        0);
-
-    return calendar.getTime();
-  }
-
   /**
    * For a sensor (sensor) and a timestamp (timestampInSeconds), retrieve the
    * measurements per day for the last week, starting from the timestamp.
@@ -40,37 +42,41 @@ public class MeasurementRepositoryCustomImpl implements MeasurementRepositoryCus
     long from = timestampInSeconds - 7 * 24 * 60 * 60 - threshold;
     long to = timestampInSeconds + threshold;
 
-    Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
-    calendar.setTimeInMillis((long) timestampInSeconds * 1000);
-    calendar.set(calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH), calendar.get(Calendar.DAY_OF_MONTH), 0, 0,
-        0);
-    long startTimeInMillis = calendar.getTimeInMillis();
-
-    Query query = new Query(Criteria.where("sensor_id").is(sensor).orOperator(
-        Criteria.where("day").is(this.subtractDays(startTimeInMillis, -1)),
-        Criteria.where("day").is(this.subtractDays(startTimeInMillis, 0)),
-        Criteria.where("day").is(this.subtractDays(startTimeInMillis, 1)),
-        Criteria.where("day").is(this.subtractDays(startTimeInMillis, 2)),
-        Criteria.where("day").is(this.subtractDays(startTimeInMillis, 3)),
-        Criteria.where("day").is(this.subtractDays(startTimeInMillis, 4)),
-        Criteria.where("day").is(this.subtractDays(startTimeInMillis, 5)),
-        Criteria.where("day").is(this.subtractDays(startTimeInMillis, 6)),
-        Criteria.where("day").is(this.subtractDays(startTimeInMillis, 7)),
-        Criteria.where("day").is(this.subtractDays(startTimeInMillis, 8))));
-
-    List<DailyMeasurements> days = mongoTemplate.find(query, DailyMeasurements.class);
-
-    if (days == null) {
+    return getBySensorBetween(sensor, from, to);
+  }
+
+  /**
+   * Retrieve all measurements of a sensor with from <= timestamp <= to (in
+   * seconds). Only the days in between are read (using the {day, sensor_id}
+   * index) and the measurements are filtered by the database, so measurements
+   * outside of the range are not transferred.
+   */
+  @Override
+  public List<Measurement> getBySensorBetween(String sensor, long fromInSeconds, long toInSeconds) {
+    if (fromInSeconds > toInSeconds) {
       return new ArrayList<Measurement>(0);
     }
 
+    Date firstDay = new Date((fromInSeconds - (fromInSeconds % 86400)) * 1000);
+    Date lastDay = new Date((toInSeconds - (toInSeconds % 86400)) * 1000);
+
+    Aggregation aggregation = Aggregation.newAggregation(
+        Aggregation.match(Criteria.where("day").gte(firstDay).lte(lastDay).and("sensor_id").is(sensor)),
+        Aggregation.project("sensor_id", "day")
+            .and(ArrayOperators.Filter.filter("measurements").as("m")
+                .by(BooleanOperators.And.and(
+                    ComparisonOperators.Gte.valueOf("m.timestamp").greaterThanEqualToValue(fromInSeconds),
+                    ComparisonOperators.Lte.valueOf("m.timestamp").lessThanEqualToValue(toInSeconds))))
+            .as("measurements"));
+
+    List<DailyMeasurements> days = mongoTemplate
+        .aggregate(aggregation, DailyMeasurements.class, DailyMeasurements.class).getMappedResults();
+
     List<Measurement> allMeasurements = new ArrayList<Measurement>(0);
 
     for (DailyMeasurements dm : days) {
-      for (Measurement m : dm.measurements) {
-        if (m.timestamp >= from && m.timestamp <= to) {
-          allMeasurements.add(m);
-        }
+      if (dm.measurements != null) {
+        allMeasurements.addAll(dm.measurements);
       }
     }
 
@@ -78,25 +84,111 @@ public class MeasurementRepositoryCustomImpl implements MeasurementRepositoryCus
   }
 
   /**
-   * Requires the day to have its time set to 00:00:00
+   * The result of getClosestBySensor: the measurement of a sensor that is the
+   * closest to the requested timestamp
    */
-  @Override
-  public List<Measurement> getBySensorSingleDay(String sensor, Date day) {
-    Query query = new Query(Criteria.where("sensor_id").is(sensor).and("day").is(day));
+  public static class ClosestMeasurement {
+    @Field("sensor_id")
+    public String sensor_id;
 
-    DailyMeasurements dm = mongoTemplate.findOne(query, DailyMeasurements.class);
+    public Measurement measurement;
+  }
 
-    if (dm == null || dm.measurements == null) {
-      return new ArrayList<Measurement>();
+  /**
+   * For every sensor, retrieve the measurement of a day (with its time set to
+   * 00:00:00) that is the closest to a timestamp (in seconds). If two are
+   * equally close, the earlier one is used. The closest measurement is picked by
+   * the database, so only a single measurement per sensor is transferred.
+   */
+  @Override
+  public Map<String, Measurement> getClosestBySensor(Date day, long timestampInSeconds) {
+    Document distanceOfThis = new Document("$abs",
+        new Document("$subtract", Arrays.asList("$$this.timestamp", timestampInSeconds)));
+    Document distanceOfValue = new Document("$abs",
+        new Document("$subtract", Arrays.asList("$$value.timestamp", timestampInSeconds)));
+
+    Document isCloser = new Document("$or", Arrays.asList(
+        new Document("$eq", Arrays.asList("$$value", null)),
+        new Document("$lt", Arrays.asList(distanceOfThis, distanceOfValue)),
+        new Document("$and", Arrays.asList(
+            new Document("$eq", Arrays.asList(distanceOfThis, distanceOfValue)),
+            new Document("$lt", Arrays.asList("$$this.timestamp", "$$value.timestamp"))))));
+
+    Document closest = new Document("$reduce", new Document("input", "$measurements").append("initialValue", null)
+        .append("in", new Document("$cond", Arrays.asList(isCloser, "$$this", "$$value"))));
+
+    AggregationOperation project = context -> new Document("$project",
+        new Document("_id", 0).append("sensor_id", 1).append("measurement", closest));
+
+    Aggregation aggregation = Aggregation.newAggregation(Aggregation.match(Criteria.where("day").is(day)), project,
+        Aggregation.match(Criteria.where("measurement").ne(null)));
+
+    List<ClosestMeasurement> results = mongoTemplate
+        .aggregate(aggregation, mongoTemplate.getCollectionName(DailyMeasurements.class), ClosestMeasurement.class)
+        .getMappedResults();
+
+    Map<String, Measurement> bySensor = new HashMap<String, Measurement>(results.size() * 2);
+    for (ClosestMeasurement result : results) {
+      bySensor.put(result.sensor_id, result.measurement);
     }
 
-    return dm.measurements;
+    return bySensor;
+  }
+
+  /**
+   * For every sensor with measurements on or after a day, retrieve the
+   * timestamp (in seconds) of its newest measurement
+   */
+  @Override
+  public LongLongHashMap getLatestTimestamps(Date since) {
+    AggregationOperation project = context -> new Document("$project",
+        new Document("sensor_id", 1).append("latest", new Document("$max", "$measurements.timestamp")));
+    AggregationOperation group = context -> new Document("$group",
+        new Document("_id", "$sensor_id").append("latest", new Document("$max", "$latest")));
+
+    Aggregation aggregation = Aggregation.newAggregation(Aggregation.match(Criteria.where("day").gte(since)), project,
+        group);
+
+    LongLongHashMap latest = new LongLongHashMap();
+    for (Document result : mongoTemplate
+        .aggregate(aggregation, mongoTemplate.getCollectionName(DailyMeasurements.class), Document.class)) {
+      Object timestamp = result.get("latest");
+      if (!(timestamp instanceof Number)) {
+        continue;
+      }
+
+      try {
+        latest.put(Long.parseLong(String.valueOf(result.get("_id"))), ((Number) timestamp).longValue());
+      } catch (NumberFormatException e) {
+        System.out.println("Ignoring sensor with invalid id: " + result.get("_id"));
+      }
+    }
 
+    return latest;
   }
 
+  /**
+   * Appends the measurements (grouped by sensor and day) with a single bulk
+   * write. Measurements that are already stored are not added again: the
+   * elements are always written in the same form (timestamp, P10, P25), so
+   * $addToSet recognizes them without reading the stored data.
+   *
+   * Returns the number of day documents that have been created or changed.
+   */
   @Override
-  public void addMeasurements(String sensor, Date day, List<Measurement> measurements) {
-    mongoTemplate.upsert(Query.query(Criteria.where("sensor_id").is(sensor).and("day").is(day)),
-        new Update().push("measurements").each(measurements), DailyMeasurements.class);
+  public int addMeasurements(List<DailyMeasurements> days) {
+    if (days.isEmpty()) {
+      return 0;
+    }
+
+    BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, DailyMeasurements.class);
+
+    for (DailyMeasurements dm : days) {
+      bulk.upsert(Query.query(Criteria.where("sensor_id").is(dm.sensor_id).and("day").is(dm.day)),
+          new Update().addToSet("measurements").each(dm.measurements.toArray()));
+    }
+
+    BulkWriteResult result = bulk.execute();
+    return result.getModifiedCount() + result.getUpserts().size();
   }
 }
@@ -9,4 +9,17 @@ public interface PredictionRepositoryCustom {
   public void saveOrUpdate(Prediction p);
 
   public List<Prediction> findByHour(Date d);
+
+  public List<SensorPrediction> findByHourWithLocation(Date d);
+
+  /**
+   * A prediction together with the location of its sensor
+   */
+  public static class SensorPrediction {
+    public String sensor_id;
+    public double lat;
+    public double lon;
+    public double p10;
+    public double p25;
+  }
 }
\ No newline at end of file
@@ -5,11 +5,13 @@ import java.util.List;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
 
 import airDataBackendService.database.Prediction;
+import airDataBackendService.database.Sensor;
 
 public class PredictionRepositoryCustomImpl implements PredictionRepositoryCustom {
   @Autowired
@@ -27,4 +29,19 @@ public class PredictionRepositoryCustomImpl implements PredictionRepositoryCusto
     Query query = new Query(Criteria.where("hour").is(d));
     return mongoTemplate.find(query, Prediction.class);
   }
-}
\ No newline at end of file
+
+  /**
+   * Same as findByHour, but joins the location of the sensor (predictions of
+   * unknown sensors are left out)
+   */
+  public List<SensorPrediction> findByHourWithLocation(Date d) {
+    Aggregation aggregation = Aggregation.newAggregation(Aggregation.match(Criteria.where("hour").is(d)),
+        Aggregation.lookup(mongoTemplate.getCollectionName(Sensor.class), "sensor_id", "sensor_id", "sensor"),
+        Aggregation.unwind("sensor"),
+        Aggregation.project("sensor_id", "p10", "p25").and("sensor.lat").as("lat").and("sensor.lon").as("lon"));
+
+    return mongoTemplate
+        .aggregate(aggregation, mongoTemplate.getCollectionName(Prediction.class), SensorPrediction.class)
+        .getMappedResults();
+  }
+}
@@ -1,7 +1,11 @@
 package airDataBackendService.repositories;
 
+import java.util.List;
+
 import airDataBackendService.database.Sensor;
 
 public interface SensorRepositoryCustom {
   public Sensor findBySensorId(String sensorId);
+
+  public int insertMissing(List<Sensor> sensors);
 }
\ No newline at end of file
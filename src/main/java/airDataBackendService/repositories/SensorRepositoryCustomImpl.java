@@ -1,9 +1,13 @@
 package airDataBackendService.repositories;
 
+import java.util.List;
+
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.BulkOperations;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 
 import airDataBackendService.database.Sensor;
 
@@ -15,4 +19,23 @@ public class SensorRepositoryCustomImpl implements SensorRepositoryCustom {
     Query query = new Query(Criteria.where("sensor_id").is(sensorId));
     return mongoTemplate.findOne(query, Sensor.class);
   }
-}
\ No newline at end of file
+
+  /**
+   * Inserts the sensors that are not stored yet with a single bulk write, the
+   * location of existing sensors is not changed. Returns the number of inserted
+   * sensors.
+   */
+  public int insertMissing(List<Sensor> sensors) {
+    if (sensors.isEmpty()) {
+      return 0;
+    }
+
+    BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Sensor.class);
+    for (Sensor s : sensors) {
+      bulk.upsert(new Query(Criteria.where("sensor_id").is(s.id)),
+          new Update().setOnInsert("lat", s.lat).setOnInsert("lon", s.lon));
+    }
+
+    return bulk.execute().getUpserts().size();
+  }
+}
@@ -1,6 +1,7 @@
 package airDataBackendService.repositories;
 
 import java.util.Date;
+import java.util.List;
 
 import airDataBackendService.database.HourlyWeatherReport;
 
@@ -8,4 +9,6 @@ public interface WeatherReportRepositoryCustom {
   public void updateMany(Iterable<HourlyWeatherReport> reports);
 
   public HourlyWeatherReport getForecastFor(String aSensorId, Date hour);
+
+  public List<HourlyWeatherReport> getForecastsBetween(String aSensorId, Date from, Date to);
 }
\ No newline at end of file
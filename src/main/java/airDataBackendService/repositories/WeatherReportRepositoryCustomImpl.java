@@ -1,6 +1,7 @@
 package airDataBackendService.repositories;
 
 import java.util.Date;
+import java.util.List;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.mongodb.core.MongoTemplate;
@@ -34,4 +35,12 @@ public class WeatherReportRepositoryCustomImpl implements WeatherReportRepositor
     return mongoTemplate.findOne(new Query(Criteria.where("sensor_id").is(aSensorId).and("hour").is(hour)),
         HourlyWeatherReport.class);
   }
+
+  /**
+   * All reports of a sensor with from <= hour <= to
+   */
+  public List<HourlyWeatherReport> getForecastsBetween(String aSensorId, Date from, Date to) {
+    return mongoTemplate.find(new Query(Criteria.where("hour").gte(from).lte(to).and("sensor_id").is(aSensorId)),
+        HourlyWeatherReport.class);
+  }
 }
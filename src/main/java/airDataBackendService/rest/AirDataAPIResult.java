@@ -1,7 +1,6 @@
 package airDataBackendService.rest;
 
 import java.util.Date;
-import java.util.List;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
@@ -13,7 +12,7 @@ public class AirDataAPIResult {
   private long id;
 
   @JsonProperty("sensordatavalues")
-  private List<SensorDataValue> values;
+  private SensorDataValues values;
 
   @JsonFormat(pattern="yyyy-MM-dd HH:mm:ss")
   private Date timestamp;
@@ -26,7 +25,7 @@ public class AirDataAPIResult {
     return this.id;
   }
 
-  public List<SensorDataValue> getValues() {
+  public SensorDataValues getValues() {
     return this.values;
   }
 
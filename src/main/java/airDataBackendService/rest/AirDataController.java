@@ -3,18 +3,26 @@ package airDataBackendService.rest;
 import airDataBackendService.database.Prediction;
 import airDataBackendService.database.Sensor;
 import airDataBackendService.services.AirDataHandlerService;
+import airDataBackendService.services.CompressedResponseCache;
 import airDataBackendService.util.Location;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 
 @RestController
-@CrossOrigin(origins = "*")
+@CrossOrigin(origins = "*", exposedHeaders = "X-Total-Count")
 @RequestMapping(path = "api/measurements")
 public class AirDataController {
 
@@ -24,11 +32,87 @@ public class AirDataController {
     @Autowired
     AirDataHandlerService airDataHandlerService;
 
+    @Autowired
+    CompressedResponseCache compressedResponseCache;
+
+    /**
+     * Returns the sensors within a bounding box ("lonMin,latMin,lonMax,latMax") or
+     * within radiusKm around a location ("lat,lon"). Defaults to all sensors in
+     * the area of the heatmap.
+     *
+     * The sensors are sorted by id and can be paged with offset and limit (0 = no
+     * limit), the total number of matching sensors is sent as X-Total-Count.
+     */
     @GetMapping(value = "sensors", produces = "application/json")
-    public Map<String, Location> getAllSensors() {
-        Map<String, Location> map = new HashMap<String, Location>();
+    public ResponseEntity<?> getAllSensors(
+            @RequestParam(value = "bbox", required = false) String bbox,
+            @RequestParam(value = "near", required = false) String near,
+            @RequestParam(value = "radiusKm", required = false) Double radiusKm,
+            @RequestParam(value = "offset", required = false, defaultValue = "0") int offset,
+            @RequestParam(value = "limit", required = false, defaultValue = "0") int limit,
+            @RequestHeader(value = "Accept-Encoding", required = false) String acceptEncoding, WebRequest request)
+            throws IOException {
+
+        if (offset < 0 || limit < 0 || (bbox != null && near != null)) {
+            return ResponseEntity.badRequest().build();
+        }
+
+        double[] box = null;
+        double[] location = null;
+        if (bbox != null) {
+            box = parseCoordinates(bbox, 4);
+            if (box == null || Math.abs(box[1]) > 90 || Math.abs(box[3]) > 90) {
+                return ResponseEntity.badRequest().build();
+            }
+        } else if (near != null) {
+            location = parseCoordinates(near, 2);
+            if (location == null || Math.abs(location[0]) > 90 || Math.abs(location[1]) > 180 || radiusKm == null
+                    || !(radiusKm > 0)) {
+                return ResponseEntity.badRequest().build();
+            }
+        }
+
+        // the sensors only change with the sensor registry, invalid requests are
+        // rejected above and never answered with 304
+        boolean gzip = CompressedResponseCache.acceptsGzip(acceptEncoding);
+        long lastModified = airDataHandlerService.getSensorsModified();
+        String eTag = "sensors-" + airDataHandlerService.getSensorsGeneration() + "-" + lastModified
+                + (gzip ? "-gzip" : "");
+        if (request.checkNotModified(eTag, lastModified)) {
+            return null;
+        }
+
+        List<Sensor> sensors;
+        if (box != null) {
+            sensors = airDataHandlerService.getSensorsWithin(box[1], box[3], box[0], box[2]);
+        } else if (location != null) {
+            sensors = airDataHandlerService.getSensorsNear(location[0], location[1], radiusKm);
+        } else {
+            sensors = airDataHandlerService.getSensors();
+        }
 
-        for (Sensor s : airDataHandlerService.getSensors()) {
+        int from = Math.min(offset, sensors.size());
+        int to = limit == 0 ? sensors.size() : (int) Math.min((long) from + limit, sensors.size());
+        List<Sensor> page = sensors.subList(from, to);
+
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok().eTag(eTag).lastModified(lastModified)
+                .cacheControl(SENSORS_CACHE_CONTROL).varyBy(HttpHeaders.ACCEPT_ENCODING)
+                .header("X-Total-Count", Integer.toString(sensors.size()));
+
+        if (gzip) {
+            String key = "sensors?bbox=" + bbox + "&near=" + near + "&radiusKm=" + radiusKm + "&offset=" + offset
+                    + "&limit=" + limit + "#" + eTag;
+            return gzipped(response,
+                    compressedResponseCache.get(key, out -> objectMapper.writeValue(out, toLocations(page))));
+        }
+
+        return response.body(toLocations(page));
+    }
+
+    private static Map<String, Location> toLocations(List<Sensor> sensors) {
+        Map<String, Location> map = new LinkedHashMap<String, Location>();
+
+        for (Sensor s : sensors) {
             Location location = new Location();
             location.lat = s.lat;
             location.lon = s.lon;
@@ -39,6 +123,38 @@ public class AirDataController {
         return map;
     }
 
+    /**
+     * Sends a body that has been compressed by the CompressedResponseCache
+     */
+    private static ResponseEntity<byte[]> gzipped(ResponseEntity.BodyBuilder response, byte[] body) {
+        return response.header(HttpHeaders.CONTENT_ENCODING, "gzip").contentType(MediaType.APPLICATION_JSON)
+                .body(body);
+    }
+
+    /**
+     * Parses a comma separated list of count numbers, returns null if it is
+     * invalid
+     */
+    private static double[] parseCoordinates(String value, int count) {
+        String[] parts = value.split(",");
+        if (parts.length != count) {
+            return null;
+        }
+
+        double[] result = new double[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                result[i] = Double.parseDouble(parts[i].trim());
+                if (!Double.isFinite(result[i])) {
+                    return null;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return result;
+    }
+
     @GetMapping(value = "bySensor", produces = "application/json")
     public BySensorResponse getMeasurementsBySensor(@RequestParam(value = "sensor", required = true) String sensor,
             @RequestParam(value = "timestamp", required = true) long timestamp) {
@@ -67,12 +183,65 @@ public class AirDataController {
     }
 
     @GetMapping(value = "predictions", produces = "application/json")
-    public List<Prediction> getPredictions(@RequestParam(value = "timestamp", required = true) long timestamp) {
-        return airDataHandlerService.getPredictions(timestamp);
+    public ResponseEntity<List<Prediction>> getPredictions(
+            @RequestParam(value = "timestamp", required = true) long timestamp, WebRequest request) {
+
+        long lastModified = airDataHandlerService.getPredictionsModified();
+        String eTag = "predictions-" + lastModified;
+        if (request.checkNotModified(eTag, lastModified)) {
+            return null;
+        }
+
+        return ResponseEntity.ok().eTag(eTag).lastModified(lastModified).cacheControl(PREDICTIONS_CACHE_CONTROL)
+                .body(airDataHandlerService.getPredictions(timestamp));
     }
 
+    /**
+     * Only the results for future hours (predictions) have validators, past hours
+     * change with every import.
+     */
     @GetMapping(value = "getAllByHour", produces = "application/json")
-    public List<ByHourResult> getAllByHour(@RequestParam(value = "timestamp", required = true) long timestamp) {
-        return airDataHandlerService.getAllByHour(timestamp);
+    public ResponseEntity<?> getAllByHour(@RequestParam(value = "timestamp", required = true) long timestamp,
+            @RequestHeader(value = "Accept-Encoding", required = false) String acceptEncoding, WebRequest request)
+            throws IOException {
+
+        boolean gzip = CompressedResponseCache.acceptsGzip(acceptEncoding);
+        long lastModified = airDataHandlerService.getAllByHourModified(timestamp);
+        ResponseEntity.BodyBuilder response;
+        String version;
+
+        if (lastModified < 0) {
+            response = ResponseEntity.ok().cacheControl(MEASUREMENTS_CACHE_CONTROL);
+            version = "measurements-" + airDataHandlerService.getMeasurementsModified();
+        } else {
+            // the gzip body is a different representation and needs its own tag
+            String eTag = "predictions-" + lastModified + (gzip ? "-gzip" : "");
+            if (request.checkNotModified(eTag, lastModified)) {
+                return null;
+            }
+
+            response = ResponseEntity.ok().eTag(eTag).lastModified(lastModified)
+                    .cacheControl(PREDICTIONS_CACHE_CONTROL);
+            version = eTag;
+        }
+        response.varyBy(HttpHeaders.ACCEPT_ENCODING);
+
+        if (gzip) {
+            String key = "getAllByHour?timestamp=" + timestamp + "#" + version;
+            return gzipped(response, compressedResponseCache.get(key,
+                    out -> objectMapper.writeValue(out, airDataHandlerService.getAllByHour(timestamp))));
+        }
+
+        return response.body(airDataHandlerService.getAllByHour(timestamp));
     }
+
+    // sensors are imported every 4 minutes
+    private static final CacheControl SENSORS_CACHE_CONTROL = CacheControl.maxAge(60, TimeUnit.SECONDS)
+            .cachePublic();
+
+    private static final CacheControl PREDICTIONS_CACHE_CONTROL = CacheControl.maxAge(60, TimeUnit.SECONDS)
+            .cachePublic();
+
+    private static final CacheControl MEASUREMENTS_CACHE_CONTROL = CacheControl.maxAge(60, TimeUnit.SECONDS)
+            .cachePublic();
 }
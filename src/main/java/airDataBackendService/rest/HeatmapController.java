@@ -1,25 +1,35 @@
 package airDataBackendService.rest;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import airDataBackendService.interpolation.HeatmapPoint;
 import airDataBackendService.interpolation.MatAccess;
-import airDataBackendService.repositories.HeatmapRepository;
+import airDataBackendService.services.CompressedResponseCache;
+import airDataBackendService.services.HeatmapService;
 
 @RestController
 @CrossOrigin(origins = "*")
@@ -30,7 +40,10 @@ public class HeatmapController {
   ObjectMapper objectMapper;
 
   @Autowired
-  HeatmapRepository heatmapRepository;
+  HeatmapService heatmapService;
+
+  @Autowired
+  CompressedResponseCache compressedResponseCache;
 
   @Value("${secrets.apiKey}")
   private String apiKey;
@@ -47,9 +60,28 @@ public class HeatmapController {
     return nearestHour;
   }
 
-  @GetMapping(value = "/", produces = "application/json")
-  public List<HeatmapPoint> getSingleHeatmap(@RequestParam(value = "timestamp", required = true) long timestamp,
-      @RequestParam(value = "type", required = true) String type) {
+  /**
+   * @param bbox      optional bounding box "lonMin,latMin,lonMax,latMax", has to
+   *                  lie within the interpolated area. Defaults to the entire
+   *                  area.
+   * @param maxPoints the number of points that should be returned (at most
+   *                  MAX_POINTS)
+   * @param accept    clients that explicitly accept HEATMAP_GRID_TYPE get a
+   *                  quantized grid (see MatAccess.writeQuantized) instead of
+   *                  a JSON list of points
+   *
+   * All bodies are written as StreamingResponseBody, Spring only streams them
+   * if that is the declared type of the ResponseEntity.
+   */
+  @GetMapping(value = "/", produces = { "application/json", HEATMAP_GRID_TYPE })
+  public ResponseEntity<StreamingResponseBody> getSingleHeatmap(
+      @RequestParam(value = "timestamp", required = true) long timestamp,
+      @RequestParam(value = "type", required = true) String type,
+      @RequestParam(value = "bbox", required = false) String bbox,
+      @RequestParam(value = "maxPoints", required = false, defaultValue = "20000") int maxPoints,
+      @RequestHeader(value = "Accept", required = false) String accept,
+      @RequestHeader(value = "Accept-Encoding", required = false) String acceptEncoding, WebRequest request)
+      throws IOException {
 
     boolean useP2 = true;
     switch (type) {
@@ -63,19 +95,54 @@ public class HeatmapController {
 
     default:
       System.out.println("type has to be either \"p10\" or \"p25\"");
-      return null;
+      return ResponseEntity.badRequest().build();
     }
 
+    double[] box = parseBoundingBox(bbox);
+    if (box == null || maxPoints < 1 || maxPoints > MAX_POINTS) {
+      return ResponseEntity.badRequest().build();
+    }
+    double lonMin = box[0];
+    double latMin = box[1];
+    double lonMax = box[2];
+    double latMax = box[3];
+
     long nearestHour = Math.round(roundToNearestHour(timestamp) / 1000);
-    InputStream inputStream = heatmapRepository.findByFilename("data-" + nearestHour);
+    boolean grid = acceptsHeatmapGrid(accept);
 
-    if (inputStream == null) {
+    // the heatmap of an hour only changes when a new one is uploaded
+    long uploadTime = heatmapService.getUploadTime(nearestHour);
+    // only the JSON points are compressed, the gzip body needs its own tag
+    boolean gzip = !grid && uploadTime >= 0 && CompressedResponseCache.acceptsGzip(acceptEncoding);
+    String eTag = "heatmap-" + nearestHour + "-" + uploadTime + (grid ? "-grid" : "-json") + (gzip ? "-gzip" : "");
+    if (uploadTime >= 0 && request.checkNotModified(eTag, uploadTime)) {
       return null;
     }
 
-    MatAccess m = new MatAccess(inputStream);
+    final boolean P1P2 = useP2;
+    if (grid) {
+      MatAccess m = heatmapService.getHeatmap(nearestHour, useP2,
+          MatAccess.levelForGrid(lonMax, latMax, lonMin, latMin, maxPoints));
+
+      // like the JSON points, a missing heatmap is an empty response
+      if (m == null) {
+        return ResponseEntity.ok(null);
+      }
+
+      return ResponseEntity.ok().eTag(eTag).lastModified(uploadTime).cacheControl(HEATMAP_CACHE_CONTROL)
+          .varyBy("Accept").contentType(MediaType.parseMediaType(HEATMAP_GRID_TYPE))
+          .body(out -> m.writeQuantized(out, lonMax, latMax, lonMin, latMin,
+              m.strideFor(lonMax, latMax, lonMin, latMin, maxPoints), P1P2));
+    }
+
+    // serve the request from the coarsest level of detail that still has enough points
+    int factor = MatAccess.levelFor(lonMax, latMax, lonMin, latMin, maxPoints);
+    MatAccess m = heatmapService.getHeatmap(nearestHour, useP2, factor);
+
+    if (m == null) {
+      return ResponseEntity.ok(null);
+    }
 
-    List<HeatmapPoint> l = m.pointArray(16, 55, 5, 47, 20000, true, useP2);
     // public JSONArray pointArray(double lonMax, -> Longitude Obergrenze
     // double latMax, -> Latitude Obergrenze
     // double lonMin, -> Longitude Untergrenze
@@ -84,9 +151,145 @@ public class HeatmapController {
     // boolean finish, -> True: Fügt Extrapunkte Am Rand ein um Streifen am Rand zu
     // vermeiden, es können jedoch <sqrt(n)*2 Punkte dazu kommen
     // boolean P1P2) -> False: Heatmap für P1; True: Heatmap für P2
+    // The points are written straight to the response, see MatAccess.writePointArray
+    // closing the generator returns its buffers for reuse, the stream is left open
+    CompressedResponseCache.BodyWriter writer = out -> {
+      try (JsonGenerator gen = objectMapper.getFactory().createGenerator(out)
+          .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)) {
+        m.writePointArray(gen, lonMax, latMax, lonMin, latMin, maxPoints, true, P1P2);
+      }
+    };
+
+    ResponseEntity.BodyBuilder response = ResponseEntity.ok().eTag(eTag).lastModified(uploadTime)
+        .cacheControl(HEATMAP_CACHE_CONTROL).varyBy("Accept", HttpHeaders.ACCEPT_ENCODING)
+        .contentType(MediaType.APPLICATION_JSON);
+
+    // compressed responses are cached until the heatmap is uploaded again
+    if (gzip) {
+      String key = "heatmap?timestamp=" + nearestHour + "&type=" + type + "&bbox=" + lonMin + "," + latMin + ","
+          + lonMax + "," + latMax + "&maxPoints=" + maxPoints + "#" + eTag;
+      byte[] compressed = compressedResponseCache.get(key, writer);
+      return response.header(HttpHeaders.CONTENT_ENCODING, "gzip").body(out -> out.write(compressed));
+    }
+
+    return response.body(writer::writeTo);
+  }
+
+  // a heatmap only changes if it is uploaded again
+  private static final CacheControl HEATMAP_CACHE_CONTROL = CacheControl.maxAge(5, TimeUnit.MINUTES).cachePublic();
+
+  private static final int MAX_POINTS = 200000;
+
+  public static final String HEATMAP_GRID_TYPE = "application/vnd.airdata.heatmap-grid";
+
+  /**
+   * Wildcards don't count, the binary format has to be requested explicitly
+   */
+  private static boolean acceptsHeatmapGrid(String accept) {
+    if (accept == null) {
+      return false;
+    }
+
+    try {
+      for (MediaType mediaType : MediaType.parseMediaTypes(accept)) {
+        if (!mediaType.isWildcardType() && !mediaType.isWildcardSubtype()
+            && mediaType.isCompatibleWith(MediaType.parseMediaType(HEATMAP_GRID_TYPE))) {
+          return true;
+        }
+      }
+    } catch (InvalidMediaTypeException e) {
+      return false;
+    }
+    return false;
+  }
+
+  /**
+   * Parses "lonMin,latMin,lonMax,latMax". Returns the entire interpolated area
+   * if bbox is null, and null if it is invalid or not within that area.
+   */
+  private static double[] parseBoundingBox(String bbox) {
+    if (bbox == null) {
+      return new double[] { 5, 47, 16, 55 };
+    }
+
+    String[] parts = bbox.split(",");
+    if (parts.length != 4) {
+      return null;
+    }
+
+    double[] box = new double[4];
+    try {
+      for (int i = 0; i < 4; i++) {
+        box[i] = Double.parseDouble(parts[i].trim());
+      }
+    } catch (NumberFormatException e) {
+      return null;
+    }
+
+    if (!MatAccess.isWithinGrid(box[2], box[3], box[0], box[1])) {
+      return null;
+    }
+    return box;
+  }
+
+  /**
+   * Returns the heatmap points within a slippy map tile (Web Mercator). The
+   * resolution is chosen so that a tile contains at most about 64 x 64 points.
+   */
+  @GetMapping(value = "/tiles/{hour}/{z}/{x}/{y}", produces = "application/json")
+  public ResponseEntity<List<HeatmapPoint>> getHeatmapTile(@PathVariable("hour") long timestamp,
+      @PathVariable("z") int z, @PathVariable("x") int x, @PathVariable("y") int y,
+      @RequestParam(value = "type", required = true) String type, WebRequest request) {
+
+    if (!type.equals("p10") && !type.equals("p25")) {
+      return ResponseEntity.badRequest().build();
+    }
+    boolean useP2 = type.equals("p25");
+
+    if (z < 0 || z > MAX_ZOOM || x < 0 || y < 0 || x >= (1 << z) || y >= (1 << z)) {
+      return ResponseEntity.badRequest().build();
+    }
+
+    double lonMin = tileToLon(x, z);
+    double lonMax = tileToLon(x + 1, z);
+    double latMax = tileToLat(y, z);
+    double latMin = tileToLat(y + 1, z);
+
+    double latStep = (latMax - latMin) / TILE_POINTS;
+    double lonStep = (lonMax - lonMin) / TILE_POINTS;
+
+    long nearestHour = Math.round(roundToNearestHour(timestamp) / 1000);
+
+    long uploadTime = heatmapService.getUploadTime(nearestHour);
+    String eTag = "heatmap-" + nearestHour + "-" + uploadTime;
+    if (uploadTime >= 0 && request.checkNotModified(eTag, uploadTime)) {
+      return null;
+    }
+
+    MatAccess m = heatmapService.getHeatmap(nearestHour, useP2, MatAccess.levelForStep(latStep, lonStep));
+
+    // a missing heatmap is an empty response, the same as for GET /heatmap/
+    if (m == null) {
+      return ResponseEntity.ok(null);
+    }
+
+    return ResponseEntity.ok().eTag(eTag).lastModified(uploadTime).cacheControl(HEATMAP_CACHE_CONTROL)
+        .body(m.gridPoints(lonMax, latMax, lonMin, latMin, m.rowStrideForStep(latStep), m.colStrideForStep(lonStep),
+            useP2));
+  }
+
+  private static final int MAX_ZOOM = 22;
+
+  // number of points per tile side
+  private static final int TILE_POINTS = 64;
+
+  private static double tileToLon(int x, int z) {
+    return x / Math.pow(2, z) * 360.0 - 180.0;
+  }
 
-    // return ResponseEntity.ok().body(l.toJSONString());
-    return l;
+  private static double tileToLat(int y, int z) {
+    double n = Math.PI - 2.0 * Math.PI * y / Math.pow(2, z);
+    return Math.toDegrees(Math.atan(Math.sinh(n)));
   }
 
   @PostMapping("/")
@@ -101,8 +304,7 @@ public class HeatmapController {
     }
 
     try {
-      InputStream inputStream = file.getInputStream();
-      heatmapRepository.store(inputStream, "data-" + nearestHour);
+      heatmapService.store(file, nearestHour);
     } catch (IOException e) {
       return ResponseEntity.status(500).body(e.toString());
     }
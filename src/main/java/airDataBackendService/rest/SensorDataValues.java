@@ -0,0 +1,35 @@
+package airDataBackendService.rest;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+
+/**
+ * The P1 and P2 values of a measurement (the first of each type in
+ * "sensordatavalues"), other value types are ignored
+ */
+@JsonDeserialize(using = SensorDataValuesDeserializer.class)
+public class SensorDataValues {
+
+  boolean hasP1;
+
+  double p1;
+
+  boolean hasP2;
+
+  double p2;
+
+  public boolean hasP1() {
+    return this.hasP1;
+  }
+
+  public double getP1() {
+    return this.p1;
+  }
+
+  public boolean hasP2() {
+    return this.hasP2;
+  }
+
+  public double getP2() {
+    return this.p2;
+  }
+}
@@ -0,0 +1,87 @@
+package airDataBackendService.rest;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.NumberInput;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+
+/**
+ * Reads "sensordatavalues" in a single pass without creating an object for
+ * every entry. The values are sent as strings, values that are not a number
+ * are read as -1.
+ */
+public class SensorDataValuesDeserializer extends StdDeserializer<SensorDataValues> {
+  private static final long serialVersionUID = 3187224405317212409L;
+
+  public SensorDataValuesDeserializer() {
+    super(SensorDataValues.class);
+  }
+
+  @Override
+  public SensorDataValues deserialize(JsonParser jp, DeserializationContext ctxt) throws IOException {
+    SensorDataValues values = new SensorDataValues();
+
+    if (!jp.isExpectedStartArrayToken()) {
+      jp.skipChildren();
+      return values;
+    }
+
+    JsonToken token;
+    while ((token = jp.nextToken()) != JsonToken.END_ARRAY && token != null) {
+      if (token != JsonToken.START_OBJECT) {
+        jp.skipChildren();
+        continue;
+      }
+
+      String valueType = null;
+      double value = -1;
+
+      while (jp.nextToken() == JsonToken.FIELD_NAME) {
+        String field = jp.getCurrentName();
+        JsonToken valueToken = jp.nextToken();
+
+        if (field.equals("value_type")) {
+          valueType = valueToken == JsonToken.VALUE_STRING ? jp.getText() : null;
+        } else if (field.equals("value")) {
+          value = parseValue(jp, valueToken);
+        } else {
+          jp.skipChildren();
+        }
+      }
+
+      if (!values.hasP1 && "P1".equals(valueType)) {
+        values.hasP1 = true;
+        values.p1 = value;
+      } else if (!values.hasP2 && "P2".equals(valueType)) {
+        values.hasP2 = true;
+        values.p2 = value;
+      }
+    }
+
+    return values;
+  }
+
+  private static double parseValue(JsonParser jp, JsonToken token) throws IOException {
+    switch (token) {
+    case VALUE_NUMBER_INT:
+    case VALUE_NUMBER_FLOAT:
+      return jp.getDoubleValue();
+
+    case VALUE_STRING:
+      return NumberInput.parseAsDouble(jp.getText().trim(), -1);
+
+    case VALUE_TRUE:
+      return 1;
+
+    case VALUE_FALSE:
+      return 0;
+
+    default:
+      jp.skipChildren();
+      return -1;
+    }
+  }
+}
@@ -1,44 +1,50 @@
 package airDataBackendService.services;
 
+import airDataBackendService.database.DailyMeasurements;
+import airDataBackendService.database.HourlyWeatherReport;
 import airDataBackendService.database.Measurement;
 import airDataBackendService.database.Prediction;
 import airDataBackendService.database.Sensor;
 import airDataBackendService.repositories.MeasurementRepository;
 import airDataBackendService.repositories.PredictionRepository;
+import airDataBackendService.repositories.PredictionRepositoryCustom.SensorPrediction;
 import airDataBackendService.repositories.SensorRepository;
 import airDataBackendService.rest.AirDataAPIResult;
 import airDataBackendService.rest.ByHourResult;
 import airDataBackendService.rest.BySensorResponse;
 import airDataBackendService.rest.PredictionUpdate;
+import airDataBackendService.rest.SensorDataValues;
+import airDataBackendService.util.LongLongHashMap;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.core.ParameterizedTypeReference;
-import org.springframework.dao.DuplicateKeyException;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.NoSuchElementException;
-import java.util.Objects;
 import java.util.TimeZone;
-import java.util.function.Predicate;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.annotation.PostConstruct;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 @Component
@@ -47,6 +53,9 @@ public class AirDataHandlerService {
     @Autowired
     private RestTemplate restTemplate;
 
+    @Autowired
+    private ObjectMapper objectMapper;
+
     @Autowired
     private WeatherDataService weatherDataService;
 
@@ -59,12 +68,37 @@ public class AirDataHandlerService {
     @Autowired
     private PredictionRepository predictionRepository;
 
+    @Autowired
+    private SensorRegistry sensorRegistry;
+
     @Value("${secrets.webhookEndpoint}")
     private String webhookUrl;
 
     @Value("${secrets.apiKey}")
     private String apiKey;
 
+    // the timestamp (in seconds) of the newest stored measurement per sensor,
+    // loaded from the database by the first import
+    private LongLongHashMap lastSeen;
+
+    // number of documents per bulk write of the import
+    @Value("${import.batchSize:1000}")
+    private int importBatchSize;
+
+    @PostConstruct
+    private void checkImportBatchSize() {
+        // the import would never finish (0) or fail on every run (< 0)
+        if (importBatchSize < 1) {
+            throw new IllegalArgumentException("import.batchSize has to be at least 1, but is " + importBatchSize);
+        }
+    }
+
+    // when the predictions have been changed the last time (in milliseconds)
+    private final AtomicLong predictionsModified = new AtomicLong(System.currentTimeMillis());
+
+    // when the last import has been finished (in milliseconds)
+    private final AtomicLong measurementsModified = new AtomicLong(System.currentTimeMillis());
+
     public void logViaWebhook(String message) {
         if (webhookUrl.length() < 1) {
             System.out.println(message);
@@ -92,237 +126,301 @@ public class AirDataHandlerService {
     @Scheduled(fixedRate = 1000 * 60 * 4)
     public void importDataSet() {
         try {
-            ResponseEntity<List<AirDataAPIResult>> response;
-            try {
-                response = restTemplate.exchange("https://data.sensor.community/airrohr/v1/filter/type=SDS011",
-                        HttpMethod.GET, null, new ParameterizedTypeReference<List<AirDataAPIResult>>() {
-                        });
-            } catch (RestClientException rce) {
-                System.out.println(rce);
-                logViaWebhook(rce.toString());
-                return;
-            }
-
-            List<AirDataAPIResult> rawResult = response.getBody();
-
-            Predicate<AirDataAPIResult> isOutdoor = e -> Objects.nonNull(e) && Objects.nonNull(e.getLocation())
-                    && e.getLocation().getIndoor() == 0;
-
-            Predicate<AirDataAPIResult> hasP1Value = e -> e.getValues().stream()
-                    .anyMatch(val -> val.getValueType().equals("P1"));
-            Predicate<AirDataAPIResult> hasP2Value = e -> e.getValues().stream()
-                    .anyMatch(val -> val.getValueType().equals("P2"));
-
-            List<AirDataAPIResult> cleanResults = rawResult.stream() // turn list into a stream
-                    .filter(isOutdoor) // only keep outdoor sensors
-                    .filter(hasP1Value) // require a p1 value
-                    .filter(hasP2Value) // require a p2 value
-                    .collect(Collectors.toList());
-
             class MeasurementData {
+                public long sensorId;
                 public double lat;
                 public double lon;
 
-                public Map<Long, Measurement> timestampToMeasurement;
+                public List<Measurement> measurements = new ArrayList<Measurement>(4);
             }
 
-            Map<Long, MeasurementData> sensorIDToData = new HashMap<Long, MeasurementData>();
-
-            for (AirDataAPIResult measurement : cleanResults) {
-                airDataBackendService.rest.Sensor sensor = measurement.getSensor();
-                if (sensor == null) {
-                    continue;
-                }
-
-                Long sensorId = new Long(sensor.getId());
-                Long timestampInSec = new Long((long) Math.floor(measurement.getTimestamp().getTime() / 1000));
-
-                double p1;
-                double p2;
+            // the data of the sensors and the index of each sensor's data (by sensor id)
+            List<MeasurementData> sensorData = new ArrayList<MeasurementData>();
+            LongLongHashMap sensorIndex = new LongLongHashMap();
 
-                try {
-                    p1 = measurement.getValues().stream().filter(e -> e.getValueType().equals("P1")).findFirst().get()
-                            .getValue();
-                } catch (Exception e) {
-                    continue;
-                }
+            if (lastSeen == null) {
+                // the feed only contains the last few minutes, so yesterday and today are enough
+                long today = System.currentTimeMillis() / 1000;
+                today -= today % 86400;
+                lastSeen = measurementRepository.getLatestTimestamps(new Date((today - 86400) * 1000));
+            }
 
-                if (p1 < 0) {
-                    continue;
+            FeedRecordConsumer grouping = (sensorId, timestampInSec, lat, lon, p1, p2) -> {
+                // skip measurements that have already been imported
+                if (timestampInSec <= lastSeen.get(sensorId, Long.MIN_VALUE)) {
+                    return;
                 }
 
-                try {
-                    p2 = measurement.getValues().stream().filter(e -> e.getValueType().equals("P2")).findFirst().get()
-                            .getValue();
-                } catch (NoSuchElementException e) {
-                    continue;
+                MeasurementData data;
+                long index = sensorIndex.get(sensorId, -1);
+                if (index < 0) {
+                    data = new MeasurementData();
+                    data.sensorId = sensorId;
+                    data.lat = lat;
+                    data.lon = lon;
+
+                    sensorIndex.put(sensorId, sensorData.size());
+                    sensorData.add(data);
+                } else {
+                    data = sensorData.get((int) index);
                 }
 
-                if (p2 < 0) {
-                    continue;
+                // the feed only covers a few minutes, so there are only a few measurements per
+                // sensor. A later measurement with the same timestamp replaces the earlier one.
+                Measurement m = null;
+                for (int i = 0; i < data.measurements.size() && m == null; i++) {
+                    if (data.measurements.get(i).timestamp == timestampInSec) {
+                        m = data.measurements.get(i);
+                    }
                 }
-
-                if (!sensorIDToData.containsKey(sensorId)) {
-                    MeasurementData data = new MeasurementData();
-                    data.lat = measurement.getLocation().getLatitude();
-                    data.lon = measurement.getLocation().getLongitude();
-                    data.timestampToMeasurement = new HashMap<Long, Measurement>();
-
-                    sensorIDToData.put(sensorId, data);
+                if (m == null) {
+                    m = new Measurement();
+                    m.timestamp = timestampInSec;
+                    data.measurements.add(m);
                 }
-
-                Measurement m = new Measurement();
                 m.p10 = p1;
                 m.p25 = p2;
-                m.timestamp = timestampInSec;
-
-                sensorIDToData.get(sensorId).timestampToMeasurement.put(timestampInSec, m);
+            };
 
+            // the feed is parsed while it is downloaded, so it is never held in memory
+            // as a whole
+            try {
+                restTemplate.execute(FEED_URL, HttpMethod.GET,
+                        request -> request.getHeaders()
+                                .setAccept(Collections.singletonList(MediaType.APPLICATION_JSON)),
+                        response -> {
+                            readFeed(response.getBody(), grouping);
+                            return null;
+                        });
+            } catch (RestClientException rce) {
+                System.out.println(rce);
+                logViaWebhook(rce.toString());
+                return;
             }
 
-            int duplicates = 0;
-            int newMeasurements = 0;
+            // the sensors of this import, for the sensor registry
+            long[] sensorIds = new long[sensorData.size()];
+            double[] sensorLats = new double[sensorData.size()];
+            double[] sensorLons = new double[sensorData.size()];
+            int sensorCount = 0;
 
-            for (Map.Entry<Long, MeasurementData> entry : sensorIDToData.entrySet()) {
-                Long sensorId = entry.getKey();
-                MeasurementData data = entry.getValue();
+            List<Sensor> sensors = new ArrayList<Sensor>(sensorData.size());
+            List<DailyMeasurements> days = new ArrayList<DailyMeasurements>();
 
-                // first, save the sensor to the "sensors"-database
-                Sensor s = new Sensor(sensorId.toString(), data.lat, data.lon);
+            for (MeasurementData data : sensorData) {
+                String sensorId = Long.toString(data.sensorId);
 
-                try {
-                    sensorRepository.save(s);
-                } catch (DuplicateKeyException e) {
-                    duplicates++;
-                }
+                sensorIds[sensorCount] = data.sensorId;
+                sensorLats[sensorCount] = data.lat;
+                sensorLons[sensorCount] = data.lon;
+                sensorCount++;
 
-                // second, save the measurements
+                sensors.add(new Sensor(sensorId, data.lat, data.lon));
 
                 // sort the measurements into "buckets" of days where each "bucket" represents a
-                // single day and contains a list of measurements
-                Map<Date, List<Measurement>> daysToMeasurements = new HashMap<Date, List<Measurement>>();
-                for (Map.Entry<Long, Measurement> measurementEntry : data.timestampToMeasurement.entrySet()) {
-                    Long timestampInSec = measurementEntry.getKey();
-                    Measurement measurement = measurementEntry.getValue();
-                    long dayTimestamp = timestampInSec - (timestampInSec % 86400);
-                    Date day = new Date(dayTimestamp * 1000);
-
-                    if (!daysToMeasurements.containsKey(day)) {
-                        daysToMeasurements.put(day, new ArrayList<Measurement>());
+                // single day and contains a list of measurements. The buckets of this sensor
+                // are days[firstDay] to the end of days.
+                int firstDay = days.size();
+                for (Measurement measurement : data.measurements) {
+                    long dayTimestamp = measurement.timestamp - (measurement.timestamp % 86400);
+
+                    DailyMeasurements dm = null;
+                    for (int d = firstDay; d < days.size() && dm == null; d++) {
+                        if (days.get(d).day.getTime() == dayTimestamp * 1000) {
+                            dm = days.get(d);
+                        }
                     }
 
-                    daysToMeasurements.get(day).add(measurement);
+                    if (dm == null) {
+                        dm = new DailyMeasurements();
+                        dm.sensor_id = sensorId;
+                        dm.day = new Date(dayTimestamp * 1000);
+                        dm.measurements = new ArrayList<Measurement>();
+
+                        days.add(dm);
+                    }
+
+                    dm.measurements.add(measurement);
                 }
+            }
 
-                for (Map.Entry<Date, List<Measurement>> measurementEntry : daysToMeasurements.entrySet()) {
-                    Date day = measurementEntry.getKey();
-                    List<Measurement> measurements = measurementEntry.getValue();
+            // first, save the sensors to the "sensors"-database, second, save the
+            // measurements. Both are written in batches.
+            int newSensors = 0;
+            for (int i = 0; i < sensors.size(); i += importBatchSize) {
+                newSensors += sensorRepository
+                        .insertMissing(sensors.subList(i, Math.min(i + importBatchSize, sensors.size())));
+            }
 
-                    List<Measurement> measurementsFromDB = measurementRepository
-                            .getBySensorSingleDay(sensorId.toString(), day);
+            int changedDays = 0;
+            for (int i = 0; i < days.size(); i += importBatchSize) {
+                changedDays += measurementRepository
+                        .addMeasurements(days.subList(i, Math.min(i + importBatchSize, days.size())));
+            }
 
-                    List<Measurement> nonDuplicates = new ArrayList<Measurement>();
-                    for (Measurement a : measurements) {
-                        if (!this.containsMeasurementWithSameTimestamp(a, measurementsFromDB)) {
-                            nonDuplicates.add(a);
-                        }
-                    }
+            sensorRegistry.add(sensorIds, sensorLats, sensorLons, sensorCount);
 
-                    measurementRepository.addMeasurements(sensorId.toString(), day, nonDuplicates);
-                    newMeasurements += nonDuplicates.size();
+            // the measurements are stored now, so they can be skipped from now on
+            for (MeasurementData data : sensorData) {
+                for (Measurement measurement : data.measurements) {
+                    lastSeen.putMax(data.sensorId, measurement.timestamp);
                 }
-
             }
 
-            System.out.println("Added " + (sensorIDToData.size() - duplicates) + " new sensors.");
-            System.out.println("Added " + newMeasurements + " new measurements.");
+            System.out.println("Added " + newSensors + " new sensors.");
+            System.out.println("Added new measurements to " + changedDays + " sensor days.");
+
+            measurementsModified.updateAndGet(previous -> Math.max(previous + 1, System.currentTimeMillis()));
 
         } catch (Exception e) {
             logViaWebhook(e.toString());
         }
     }
 
-    private boolean containsMeasurementWithSameTimestamp(Measurement a, List<Measurement> measurements) {
-        for (Measurement b : measurements) {
-            if (a.timestamp == b.timestamp) {
-                return true;
-            }
-        }
+    private static final String FEED_URL = "https://data.sensor.community/airrohr/v1/filter/type=SDS011";
 
-        return false;
+    /**
+     * Receives the measurements of the feed
+     */
+    private interface FeedRecordConsumer {
+        void accept(long sensorId, long timestampInSec, double lat, double lon, double p1, double p2);
     }
 
     /**
-     * Return all available sensors
+     * Reads the feed (a JSON array of AirDataAPIResult) one element at a time and
+     * passes on the measurements of outdoor sensors with valid P1 and P2 values
      */
-    public List<Sensor> getSensors() {
-        List<Sensor> allSensors = sensorRepository.findAll();
-        List<Sensor> result = new ArrayList<Sensor>();
+    private void readFeed(InputStream body, FeedRecordConsumer consumer) throws IOException {
+        ObjectReader reader = objectMapper.readerFor(AirDataAPIResult.class);
 
-        for (Sensor s : allSensors) {
-            if (s.lat >= 44 && s.lat <= 58 && s.lon >= 2 && s.lon <= 19) {
-                result.add(s);
+        try (JsonParser parser = objectMapper.getFactory().createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IOException("The feed is not an array");
+            }
+
+            JsonToken token;
+            while ((token = parser.nextToken()) != null && token != JsonToken.END_ARRAY) {
+                if (token != JsonToken.START_OBJECT) {
+                    parser.skipChildren();
+                    continue;
+                }
+
+                AirDataAPIResult measurement = reader.readValue(parser);
+
+                // only keep outdoor sensors
+                if (measurement.getLocation() == null || measurement.getLocation().getIndoor() != 0) {
+                    continue;
+                }
+
+                // require a p1 and a p2 value
+                SensorDataValues values = measurement.getValues();
+                if (values == null || !values.hasP1() || !values.hasP2() || values.getP1() < 0
+                        || values.getP2() < 0) {
+                    continue;
+                }
+
+                airDataBackendService.rest.Sensor sensor = measurement.getSensor();
+                if (sensor == null || measurement.getTimestamp() == null) {
+                    continue;
+                }
+
+                consumer.accept(sensor.getId(), (long) Math.floor(measurement.getTimestamp().getTime() / 1000),
+                        measurement.getLocation().getLatitude(), measurement.getLocation().getLongitude(),
+                        values.getP1(), values.getP2());
             }
         }
+    }
 
-        return result;
+    /**
+     * Return all available sensors (from the sensor registry)
+     */
+    public List<Sensor> getSensors() {
+        return getSensorsWithin(44, 58, 2, 19);
     }
 
-    private Result hasMeasurementWithinTimestampWithOffset(List<Measurement> measurements, long timestampInSeconds,
-            long offsetInSeconds) {
-        for (Measurement m : measurements) {
-            if (Math.abs(m.timestamp - timestampInSeconds) <= offsetInSeconds) {
-                return new Result(true, "");
-            }
+    /**
+     * Increases every time the sensors change
+     */
+    public long getSensorsGeneration() {
+        return sensorRegistry.getGeneration();
+    }
+
+    /**
+     * When the sensors have been changed the last time (in milliseconds)
+     */
+    public long getSensorsModified() {
+        return sensorRegistry.getSnapshot().getLastModified();
+    }
+
+    /**
+     * Return all sensors with latMin <= lat <= latMax and lonMin <= lon <= lonMax,
+     * sorted by id
+     */
+    public List<Sensor> getSensorsWithin(double latMin, double latMax, double lonMin, double lonMax) {
+        SensorRegistry.Snapshot sensors = sensorRegistry.getSnapshot();
+        return toSensors(sensors, sensors.within(latMin, latMax, lonMin, lonMax));
+    }
+
+    /**
+     * Return all sensors within a radius (in km) around a location, sorted by id
+     */
+    public List<Sensor> getSensorsNear(double lat, double lon, double radiusKm) {
+        SensorRegistry.Snapshot sensors = sensorRegistry.getSnapshot();
+        return toSensors(sensors, sensors.near(lat, lon, radiusKm));
+    }
+
+    private List<Sensor> toSensors(SensorRegistry.Snapshot sensors, int[] indices) {
+        List<Sensor> result = new ArrayList<Sensor>(indices.length);
+
+        for (int i : indices) {
+            result.add(new Sensor(Long.toString(sensors.getId(i)), sensors.getLat(i), sensors.getLon(i)));
         }
-        return new Result(false, "No measurements found for timestamp: " + timestampInSeconds + " within +-"
-                + offsetInSeconds + " seconds (" + offsetInSeconds / 3600 + " hours)");
+
+        return result;
     }
 
     /**
      * A list of measurements is continuous when there are no large gaps between
      * measurements. (Offset = gap)
+     *
+     * Every hour from startTimeInSeconds back to a week before needs a
+     * measurement within +-3 hours. The hours are checked from the newest to the
+     * oldest, so a single pass over the sorted timestamps (in the same direction)
+     * is enough.
      */
-    private Result isContinuous(List<Measurement> measurements, long startTimeInSeconds) {
+    static Result isContinuous(MeasurementSeries measurements, long startTimeInSeconds) {
+        long[] timestamps = measurements.getTimestamps();
         long endTimeInSeconds = startTimeInSeconds - 7 * 24 * 60 * 60;
         long offsetInSeconds = 3 * 60 * 60;// 3 hours in seconds
 
+        // index of the newest timestamp that is not after the current hour + offset
+        int j = timestamps.length - 1;
+
         for (long i = startTimeInSeconds; i >= endTimeInSeconds; i -= 60 * 60) {
-            Result r = this.hasMeasurementWithinTimestampWithOffset(measurements, i, offsetInSeconds);
-            if (!r.getResult()) {
-                return r;
+            while (j >= 0 && timestamps[j] > i + offsetInSeconds) {
+                j--;
             }
-        }
 
-        return new Result(true, "");
-    }
-
-    /**
-     * Returns the best fit measurement (by timestamp) for a certain timestamp.
-     */
-    private Measurement bestFit(List<Measurement> measurements, long timestamp) {
-        Measurement result = new Measurement();
-        result.timestamp = Long.MAX_VALUE;
-
-        for (Measurement m : measurements) {
-            if (Math.abs(result.timestamp - timestamp) > Math.abs(m.timestamp - timestamp)) {
-                result = m;
+            if (j < 0 || timestamps[j] < i - offsetInSeconds) {
+                return new Result(false, "No measurements found for timestamp: " + i + " within +-" + offsetInSeconds
+                        + " seconds (" + offsetInSeconds / 3600 + " hours)");
             }
         }
 
-        return result;
+        return new Result(true, "");
     }
 
     public BySensorResponse getBySensor(String sensor, long timestamp) {
         // retrieve all relevant measurements from the database
-        List<Measurement> allMeasurements = measurementRepository.getBySensor(sensor, timestamp);
+        MeasurementSeries allMeasurements = new MeasurementSeries(
+                measurementRepository.getBySensor(sensor, timestamp));
 
         BySensorResponse response = new BySensorResponse();
-        Result continuousResult = this.isContinuous(allMeasurements, timestamp);
+        Result continuousResult = isContinuous(allMeasurements, timestamp);
         response.continuous = continuousResult.getResult();
         response.weatherReport = weatherDataService.getForecastFor(sensor, timestamp + 60 * 60 * 5);
         if (response.continuous) {
-            response.measurement = this.bestFit(allMeasurements, timestamp);
+            response.measurement = allMeasurements.getMeasurement(allMeasurements.bestFit(timestamp));
         } else {
             response.reason = continuousResult.getReason();
         }
@@ -331,19 +429,24 @@ public class AirDataHandlerService {
 
     public BySensorResponse getBySensorWithoutContinuous(String sensor, long timestamp) {
         // retrieve all relevant measurements from the database
-        List<Measurement> allMeasurements = measurementRepository.getBySensor(sensor, timestamp);
+        MeasurementSeries allMeasurements = new MeasurementSeries(
+                measurementRepository.getBySensor(sensor, timestamp));
 
         BySensorResponse response = new BySensorResponse();
         response.weatherReport = weatherDataService.getForecastFor(sensor, timestamp + 60 * 60 * 5);
-        response.measurement = this.bestFit(allMeasurements, timestamp);
 
-        // check if the mesurement has been set
-        if (response.measurement.timestamp == Long.MAX_VALUE) {
-            response.measurement = null;
+        int bestFit = allMeasurements.bestFit(timestamp);
+        if (bestFit >= 0) {
+            response.measurement = allMeasurements.getMeasurement(bestFit);
         }
         return response;
     }
 
+    /**
+     * Same as getBySensorWithoutContinuous for every hour from the timestamp until
+     * now. All measurements and weather reports are fetched at once and matched
+     * to the hours in memory.
+     */
     public List<BySensorResponse> getBySensorUntilNow(String sensor, long timestamp) {
         long nearestHour = roundToNearestHour(timestamp);
         long now = System.currentTimeMillis();
@@ -352,11 +455,30 @@ public class AirDataHandlerService {
             return new ArrayList<BySensorResponse>();
         }
 
+        long firstHour = Math.round(nearestHour / 1000);
+        long lastHour = firstHour + (now - 1 - nearestHour) / 3600000 * 3600;
+
+        long week = 7 * 24 * 60 * 60;
+        long threshold = 3 * 60 * 60; // 3 hours represented in seconds
+        long forecastOffset = 60 * 60 * 5;
+
+        MeasurementSeries allMeasurements = new MeasurementSeries(
+                measurementRepository.getBySensorBetween(sensor, firstHour - week - threshold, lastHour + threshold));
+        Map<Long, HourlyWeatherReport> weatherReports = weatherDataService.getForecastsFor(sensor,
+                firstHour + forecastOffset, lastHour + forecastOffset);
+
         List<BySensorResponse> result = new ArrayList<BySensorResponse>();
-        while (nearestHour < now) {
-            BySensorResponse single = getBySensorWithoutContinuous(sensor, Math.round(nearestHour / 1000));
+        for (long hour = firstHour; hour <= lastHour; hour += 3600) {
+            BySensorResponse single = new BySensorResponse();
+            single.weatherReport = weatherReports.get((hour + forecastOffset) * 1000);
+
+            // the same window getBySensor(sensor, hour) would return
+            int bestFit = allMeasurements.bestFit(hour, hour - week - threshold, hour + threshold);
+            if (bestFit >= 0) {
+                single.measurement = allMeasurements.getMeasurement(bestFit);
+            }
+
             result.add(single);
-            nearestHour += 3600000;
         }
 
         return result;
@@ -397,6 +519,34 @@ public class AirDataHandlerService {
 
             predictionRepository.saveOrUpdate(p);
         }
+
+        predictionsModified.updateAndGet(previous -> Math.max(previous + 1, System.currentTimeMillis()));
+    }
+
+    /**
+     * When the predictions have been changed the last time (in milliseconds)
+     */
+    public long getPredictionsModified() {
+        return predictionsModified.get();
+    }
+
+    /**
+     * When the measurements have been imported the last time (in milliseconds)
+     */
+    public long getMeasurementsModified() {
+        return measurementsModified.get();
+    }
+
+    /**
+     * When the result of getAllByHour has been changed the last time (in
+     * milliseconds). Returns -1 for past hours, their measurements may still be
+     * imported.
+     */
+    public long getAllByHourModified(long timestamp) {
+        if (roundToNearestHour(timestamp) > System.currentTimeMillis()) {
+            return getPredictionsModified();
+        }
+        return -1;
     }
 
     public List<Prediction> getPredictions(long timestamp) {
@@ -413,18 +563,15 @@ public class AirDataHandlerService {
 
         // if timestamp is in the future
         if (nearestHour > now) {
-            List<Prediction> predictions = getPredictions(timestamp);
-
-            for (Prediction p : predictions) {
-                Sensor s = sensorRepository.findBySensorId(p.sensor_id);
-                if (s == null) {
-                    continue;
-                }
+            // the predictions already contain the location of their sensor
+            List<SensorPrediction> predictions = predictionRepository
+                    .findByHourWithLocation(new Date(nearestHour));
 
+            for (SensorPrediction p : predictions) {
                 ByHourResult bhr = new ByHourResult();
-                bhr.sensor_id = s.id;
-                bhr.lat = s.lat;
-                bhr.lon = s.lon;
+                bhr.sensor_id = p.sensor_id;
+                bhr.lat = p.lat;
+                bhr.lon = p.lon;
                 bhr.p10 = p.p10;
                 bhr.p25 = p.p25;
 
@@ -441,12 +588,14 @@ public class AirDataHandlerService {
         long startTimeInMillis = calendar.getTimeInMillis();
         Date day = new Date(startTimeInMillis);
 
+        // the best fit measurement of every sensor for that day
+        Map<String, Measurement> bestFits = measurementRepository.getClosestBySensor(day, timestamp);
+
         for (Sensor s : this.getSensors()) {
-            List<Measurement> measurements = measurementRepository.getBySensorSingleDay(s.id, day);
-            Measurement bestFit = this.bestFit(measurements, timestamp);
+            Measurement bestFit = bestFits.get(s.id);
 
-            // check if the mesurement has been set
-            if (bestFit.timestamp == Long.MAX_VALUE) {
+            // check if there is a measurement for that day
+            if (bestFit == null) {
                 continue;
             }
 
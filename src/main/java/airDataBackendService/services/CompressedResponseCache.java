@@ -0,0 +1,91 @@
+package airDataBackendService.services;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.zip.GZIPOutputStream;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import airDataBackendService.util.LruCache;
+
+/**
+ * Keeps gzip compressed response bodies, so a response is only serialized and
+ * compressed once per change of its data. The keys have to contain everything
+ * the body depends on: the endpoint, its parameters and the version of the
+ * data.
+ */
+@Component
+public class CompressedResponseCache {
+
+    public interface BodyWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private final LruCache<String, byte[]> cache;
+
+    /**
+     * @param cacheSize maximum size of the compressed responses kept in memory (in
+     *                  bytes)
+     */
+    public CompressedResponseCache(@Value("${responses.cacheSize:67108864}") long cacheSize) {
+        cache = new LruCache<String, byte[]>(cacheSize, body -> body.length);
+    }
+
+    /**
+     * Returns the gzip compressed body for the key, the writer is only called if
+     * it is not cached yet
+     */
+    public byte[] get(String key, BodyWriter writer) throws IOException {
+        try {
+            return cache.get(key, k -> compress(writer));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static byte[] compress(BodyWriter writer) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes, 8192)) {
+            writer.writeTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Whether the Accept-Encoding header of a request allows gzip
+     */
+    public static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim();
+            if (!name.equalsIgnoreCase("gzip") && !name.equals("*")) {
+                continue;
+            }
+
+            double q = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (q > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,183 @@
+package airDataBackendService.services;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.function.Function;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.stereotype.Service;
+
+import airDataBackendService.interpolation.MatAccess;
+import airDataBackendService.repositories.HeatmapRepository;
+import airDataBackendService.util.LruCache;
+
+@Service
+public class HeatmapService {
+
+    @Autowired
+    private HeatmapRepository heatmapRepository;
+
+    private final LruCache<String, MatAccess> cache;
+
+    // upload time (in milliseconds) of the heatmaps
+    private final LruCache<String, Long> uploadTimes = new LruCache<String, Long>(10000, time -> 1);
+
+    // levels of detail that don't exist, e.g. of heatmaps uploaded before the
+    // levels have been introduced
+    private final LruCache<String, Boolean> missingLevels = new LruCache<String, Boolean>(10000, missing -> 1);
+
+    /**
+     * @param cacheSize maximum size of the decoded heatmaps kept in memory (in
+     *                  bytes). Defaults to a quarter of the maximum heap size.
+     */
+    public HeatmapService(@Value("${heatmap.cacheSize:-1}") long cacheSize) {
+        if (cacheSize < 0) {
+            cacheSize = Runtime.getRuntime().maxMemory() / 4;
+        }
+        cache = new LruCache<String, MatAccess>(cacheSize, MatAccess::sizeInBytes);
+    }
+
+    private String filename(long hourInSeconds) {
+        return "data-" + hourInSeconds;
+    }
+
+    /**
+     * The original MAT-file is stored as data-[hour], the coarser levels of
+     * detail as data-[hour]-[grid]-x[factor]
+     */
+    private String filename(long hourInSeconds, boolean useP2, int factor) {
+        if (factor == 1) {
+            return filename(hourInSeconds);
+        }
+        return filename(hourInSeconds) + (useP2 ? "-grid_P2" : "-grid_P1") + "-x" + factor;
+    }
+
+    private String cacheKey(long hourInSeconds, boolean useP2, int factor) {
+        return filename(hourInSeconds) + (useP2 ? "/grid_P2" : "/grid_P1") + "/x" + factor;
+    }
+
+    /**
+     * Returns the decoded heatmap for an hour (timestamp in seconds, already
+     * rounded to the hour) or null if there is none. Only the requested grid (P1
+     * or P2) is read.
+     */
+    public MatAccess getHeatmap(long hourInSeconds, boolean useP2) {
+        return getHeatmap(hourInSeconds, useP2, 1);
+    }
+
+    /**
+     * Returns a level of detail (see {@link MatAccess#LEVELS}) of the heatmap.
+     * Falls back to the full resolution if the level has not been generated.
+     */
+    public MatAccess getHeatmap(long hourInSeconds, boolean useP2, int factor) {
+        String levelKey = cacheKey(hourInSeconds, useP2, factor);
+        Function<String, MatAccess> loader = key -> load(filename(hourInSeconds, useP2, factor), useP2, factor);
+
+        if (factor == 1) {
+            return cache.get(levelKey, loader);
+        }
+
+        // a missing level is remembered, so it doesn't cost a lookup on every request
+        Boolean missing = missingLevels.get(levelKey,
+                key -> cache.get(levelKey, loader) == null ? Boolean.TRUE : null);
+        if (missing != null) {
+            return getHeatmap(hourInSeconds, useP2, 1);
+        }
+        return cache.get(levelKey, loader);
+    }
+
+    /**
+     * Returns when the heatmap for an hour has been uploaded (in milliseconds) or
+     * -1 if there is none. Changes whenever the heatmap is replaced.
+     */
+    public long getUploadTime(long hourInSeconds) {
+        Long time = uploadTimes.get(filename(hourInSeconds), filename -> {
+            Date uploadDate = heatmapRepository.findUploadDate(filename);
+            return uploadDate == null ? null : uploadDate.getTime();
+        });
+
+        return time == null ? -1 : time;
+    }
+
+    private MatAccess load(String filename, boolean useP2, int factor) {
+        InputStream inputStream = heatmapRepository.findByFilename(filename);
+
+        if (inputStream == null) {
+            return null;
+        }
+
+        try {
+            if (factor == 1) {
+                return new MatAccess(inputStream, useP2);
+            }
+            return MatAccess.readGrid(inputStream, useP2);
+        } catch (RuntimeException | IOException e) {
+            System.out.println("Could not read heatmap " + filename + ": " + e);
+            return null;
+        } finally {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                System.out.println(e);
+            }
+        }
+    }
+
+    /**
+     * Stores the MAT-file for an hour and precomputes its levels of detail. The
+     * levels of a previous upload are deleted first, so they are never served
+     * for the new file (if it can't be decoded or lacks one of the grids).
+     */
+    public void store(InputStreamSource content, long hourInSeconds) throws IOException {
+        try {
+            for (int l = 1; l < MatAccess.LEVELS.length; l++) {
+                heatmapRepository.delete(filename(hourInSeconds, false, MatAccess.LEVELS[l]));
+                heatmapRepository.delete(filename(hourInSeconds, true, MatAccess.LEVELS[l]));
+            }
+
+            try (InputStream inputStream = content.getInputStream()) {
+                heatmapRepository.store(inputStream, filename(hourInSeconds));
+            }
+
+            storeLevels(content, hourInSeconds);
+        } finally {
+            for (int factor : MatAccess.LEVELS) {
+                for (boolean useP2 : new boolean[] { false, true }) {
+                    cache.invalidate(cacheKey(hourInSeconds, useP2, factor));
+                    missingLevels.invalidate(cacheKey(hourInSeconds, useP2, factor));
+                }
+            }
+            uploadTimes.invalidate(filename(hourInSeconds));
+        }
+    }
+
+    private void storeLevels(InputStreamSource content, long hourInSeconds) throws IOException {
+        MatAccess level;
+        try (InputStream inputStream = content.getInputStream()) {
+            level = new MatAccess(inputStream);
+        } catch (RuntimeException e) {
+            System.out.println("Could not create levels of detail for " + filename(hourInSeconds) + ": " + e);
+            return;
+        }
+
+        for (int l = 1; l < MatAccess.LEVELS.length; l++) {
+            level = level.downsample(MatAccess.LEVELS[l] / level.getFactor());
+
+            for (boolean useP2 : new boolean[] { false, true }) {
+                if (!level.hasGrid(useP2)) {
+                    continue;
+                }
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream((int) level.sizeInBytes() + 64);
+                level.writeGrid(out, useP2);
+                heatmapRepository.store(new ByteArrayInputStream(out.toByteArray()),
+                        filename(hourInSeconds, useP2, level.getFactor()));
+            }
+        }
+    }
+}
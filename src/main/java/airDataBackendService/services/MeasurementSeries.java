@@ -0,0 +1,129 @@
+package airDataBackendService.services;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import airDataBackendService.database.Measurement;
+
+/**
+ * The measurements of a single sensor, sorted by timestamp and stored in
+ * primitive arrays (timestamps[i], p10[i] and p25[i] belong to the same
+ * measurement).
+ */
+public class MeasurementSeries {
+    private final long[] timestamps;
+    private final double[] p10;
+    private final double[] p25;
+
+    public MeasurementSeries(List<Measurement> measurements) {
+        Measurement[] sorted = measurements.toArray(new Measurement[measurements.size()]);
+        Arrays.sort(sorted, Comparator.comparingLong(m -> m.timestamp));
+
+        timestamps = new long[sorted.length];
+        p10 = new double[sorted.length];
+        p25 = new double[sorted.length];
+
+        for (int i = 0; i < sorted.length; i++) {
+            timestamps[i] = sorted[i].timestamp;
+            p10[i] = sorted[i].p10;
+            p25[i] = sorted[i].p25;
+        }
+    }
+
+    public int size() {
+        return timestamps.length;
+    }
+
+    public boolean isEmpty() {
+        return timestamps.length == 0;
+    }
+
+    /**
+     * The timestamps in ascending order. Must not be modified.
+     */
+    public long[] getTimestamps() {
+        return timestamps;
+    }
+
+    public long getTimestamp(int index) {
+        return timestamps[index];
+    }
+
+    public double getP10(int index) {
+        return p10[index];
+    }
+
+    public double getP25(int index) {
+        return p25[index];
+    }
+
+    /**
+     * Returns the index of the best fit measurement (by timestamp) for a certain
+     * timestamp or -1 if there are no measurements. If two measurements are
+     * equally close, the earlier one is used.
+     */
+    public int bestFit(long timestamp) {
+        return bestFit(timestamp, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Same as above, but only measurements with from <= timestamp <= to are
+     * considered.
+     */
+    public int bestFit(long timestamp, long from, long to) {
+        int first = firstIndexAtOrAfter(from);
+        int end = to == Long.MAX_VALUE ? timestamps.length : firstIndexAtOrAfter(to + 1);
+
+        if (first >= end) {
+            return -1;
+        }
+
+        int after = Math.max(first, Math.min(end, firstIndexAtOrAfter(timestamp)));
+
+        if (after == first) {
+            return first;
+        }
+        if (after == end) {
+            return end - 1;
+        }
+        if (timestamps[after] == timestamp) {
+            return after;
+        }
+
+        int before = after - 1;
+        if (timestamp - timestamps[before] <= timestamps[after] - timestamp) {
+            return before;
+        }
+        return after;
+    }
+
+    /**
+     * Index of the first measurement with a timestamp >= the given one (or
+     * size() if there is none)
+     */
+    private int firstIndexAtOrAfter(long timestamp) {
+        int low = 0;
+        int high = timestamps.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timestamps[mid] < timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Creates a Measurement for the measurement at the index
+     */
+    public Measurement getMeasurement(int index) {
+        Measurement m = new Measurement();
+        m.timestamp = timestamps[index];
+        m.p10 = p10[index];
+        m.p25 = p25[index];
+        return m;
+    }
+}
@@ -0,0 +1,325 @@
+package airDataBackendService.services;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import airDataBackendService.database.Sensor;
+import airDataBackendService.repositories.SensorRepository;
+
+/**
+ * Keeps all sensors (id and location) in memory, so listing them or finding
+ * the sensors within an area doesn't need a database query.
+ *
+ * The sensors are loaded from the database on first use and are updated by
+ * the import (see add). Sensors that are written by others (e.g. the
+ * importer scripts) are picked up by reloading the sensors once the last load
+ * is older than sensors.reloadInterval. Readers always see an immutable
+ * snapshot.
+ */
+@Component
+public class SensorRegistry {
+
+    @Autowired
+    private SensorRepository sensorRepository;
+
+    // maximum age of the sensors loaded from the database (in milliseconds)
+    @Value("${sensors.reloadInterval:600000}")
+    private long reloadInterval;
+
+    private volatile Snapshot snapshot;
+
+    // when the sensors have been loaded from the database (in milliseconds)
+    private volatile long loadedAt;
+
+    private long generation = 0;
+
+    /**
+     * Returns the current sensors, (re)loading them from the database if
+     * necessary
+     */
+    public Snapshot getSnapshot() {
+        Snapshot current = snapshot;
+        if (current != null && !isOutdated()) {
+            return current;
+        }
+
+        synchronized (this) {
+            if (snapshot == null || isOutdated()) {
+                Snapshot loaded = load();
+
+                // keep the current snapshot (and its ETag) if nothing has changed
+                if (snapshot == null || !snapshot.hasSameSensors(loaded)) {
+                    snapshot = loaded;
+                }
+                loadedAt = System.currentTimeMillis();
+            }
+            return snapshot;
+        }
+    }
+
+    private boolean isOutdated() {
+        return System.currentTimeMillis() - loadedAt >= reloadInterval;
+    }
+
+    /**
+     * Increases every time the sensors change (or are reloaded)
+     */
+    public long getGeneration() {
+        return getSnapshot().getGeneration();
+    }
+
+    private Snapshot load() {
+        List<Sensor> sensors = sensorRepository.findAll();
+
+        long[] ids = new long[sensors.size()];
+        double[] lats = new double[sensors.size()];
+        double[] lons = new double[sensors.size()];
+        int count = 0;
+
+        for (Sensor s : sensors) {
+            try {
+                ids[count] = Long.parseLong(s.id);
+            } catch (NumberFormatException e) {
+                System.out.println("Ignoring sensor with invalid id: " + s.id);
+                continue;
+            }
+            lats[count] = s.lat;
+            lons[count] = s.lon;
+            count++;
+        }
+
+        return Snapshot.build(ids, lats, lons, count, ++generation);
+    }
+
+    /**
+     * Adds sensors that are not known yet. Like the database, the location of a
+     * known sensor is not changed.
+     */
+    public synchronized void add(long[] ids, double[] lats, double[] lons, int count) {
+        Snapshot current = snapshot;
+        if (current == null) {
+            // not loaded yet, the sensors will be read from the database
+            return;
+        }
+
+        boolean changed = false;
+        for (int i = 0; i < count && !changed; i++) {
+            changed = current.indexOf(ids[i]) < 0;
+        }
+        if (!changed) {
+            return;
+        }
+
+        int size = current.size();
+        long[] allIds = Arrays.copyOf(current.ids, size + count);
+        double[] allLats = Arrays.copyOf(current.lats, size + count);
+        double[] allLons = Arrays.copyOf(current.lons, size + count);
+        System.arraycopy(ids, 0, allIds, size, count);
+        System.arraycopy(lats, 0, allLats, size, count);
+        System.arraycopy(lons, 0, allLons, size, count);
+
+        snapshot = Snapshot.build(allIds, allLats, allLons, size + count, ++generation);
+    }
+
+    /**
+     * An immutable set of sensors, sorted by id. The sensors are addressed by
+     * their index (0 <= index < size()).
+     */
+    public static final class Snapshot {
+        // size of a grid cell in degrees
+        private static final int CELLS_PER_DEGREE = 1;
+        private static final int ROWS = 180 * CELLS_PER_DEGREE;
+        private static final int COLS = 360 * CELLS_PER_DEGREE;
+
+        private final long[] ids;
+        private final double[] lats;
+        private final double[] lons;
+        private final long generation;
+        private final long lastModified = System.currentTimeMillis();
+
+        // the indices of the sensors in cell c are cellEntries[cellStart[c]] to
+        // cellEntries[cellStart[c + 1] - 1]
+        private final int[] cellStart;
+        private final int[] cellEntries;
+
+        private Snapshot(long[] ids, double[] lats, double[] lons, long generation) {
+            this.ids = ids;
+            this.lats = lats;
+            this.lons = lons;
+            this.generation = generation;
+
+            cellStart = new int[ROWS * COLS + 1];
+            for (int i = 0; i < ids.length; i++) {
+                cellStart[cell(lats[i], lons[i]) + 1]++;
+            }
+            for (int c = 0; c < ROWS * COLS; c++) {
+                cellStart[c + 1] += cellStart[c];
+            }
+
+            cellEntries = new int[ids.length];
+            int[] next = Arrays.copyOf(cellStart, ROWS * COLS);
+            for (int i = 0; i < ids.length; i++) {
+                cellEntries[next[cell(lats[i], lons[i])]++] = i;
+            }
+        }
+
+        /**
+         * Sorts the first count sensors by id. If an id occurs more than once, the
+         * first one is kept.
+         */
+        private static Snapshot build(long[] ids, double[] lats, double[] lons, int count, long generation) {
+            int[] order = IntStream.range(0, count).boxed()
+                    .sorted((a, b) -> ids[a] != ids[b] ? Long.compare(ids[a], ids[b]) : Integer.compare(a, b))
+                    .mapToInt(Integer::intValue).toArray();
+
+            long[] sortedIds = new long[count];
+            double[] sortedLats = new double[count];
+            double[] sortedLons = new double[count];
+            int size = 0;
+
+            for (int i : order) {
+                if (Double.isNaN(lats[i]) || Double.isNaN(lons[i])) {
+                    continue;
+                }
+                if (size > 0 && sortedIds[size - 1] == ids[i]) {
+                    continue;
+                }
+                sortedIds[size] = ids[i];
+                sortedLats[size] = lats[i];
+                sortedLons[size] = lons[i];
+                size++;
+            }
+
+            return new Snapshot(Arrays.copyOf(sortedIds, size), Arrays.copyOf(sortedLats, size),
+                    Arrays.copyOf(sortedLons, size), generation);
+        }
+
+        private static int row(double lat) {
+            return Math.max(0, Math.min(ROWS - 1, (int) Math.floor((lat + 90) * CELLS_PER_DEGREE)));
+        }
+
+        private static int col(double lon) {
+            return Math.max(0, Math.min(COLS - 1, (int) Math.floor((lon + 180) * CELLS_PER_DEGREE)));
+        }
+
+        private static int cell(double lat, double lon) {
+            return row(lat) * COLS + col(lon);
+        }
+
+        public int size() {
+            return ids.length;
+        }
+
+        private boolean hasSameSensors(Snapshot other) {
+            return Arrays.equals(ids, other.ids) && Arrays.equals(lats, other.lats) && Arrays.equals(lons, other.lons);
+        }
+
+        public long getGeneration() {
+            return generation;
+        }
+
+        /**
+         * When the snapshot has been created (in milliseconds)
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public long getId(int index) {
+            return ids[index];
+        }
+
+        public double getLat(int index) {
+            return lats[index];
+        }
+
+        public double getLon(int index) {
+            return lons[index];
+        }
+
+        /**
+         * Returns the index of a sensor or a negative value if it is unknown
+         */
+        public int indexOf(long id) {
+            return Arrays.binarySearch(ids, id);
+        }
+
+        /**
+         * Returns the indices (in ascending order) of all sensors with latMin <= lat
+         * <= latMax and lonMin <= lon <= lonMax
+         */
+        public int[] within(double latMin, double latMax, double lonMin, double lonMax) {
+            if (latMin > latMax || lonMin > lonMax) {
+                return new int[0];
+            }
+
+            int[] result = new int[16];
+            int count = 0;
+
+            for (int r = row(latMin); r <= row(latMax); r++) {
+                for (int c = col(lonMin); c <= col(lonMax); c++) {
+                    int cell = r * COLS + c;
+                    for (int e = cellStart[cell]; e < cellStart[cell + 1]; e++) {
+                        int i = cellEntries[e];
+                        if (lats[i] >= latMin && lats[i] <= latMax && lons[i] >= lonMin && lons[i] <= lonMax) {
+                            if (count == result.length) {
+                                result = Arrays.copyOf(result, count * 2);
+                            }
+                            result[count++] = i;
+                        }
+                    }
+                }
+            }
+
+            result = Arrays.copyOf(result, count);
+            Arrays.sort(result);
+            return result;
+        }
+
+        /**
+         * Returns the indices (in ascending order) of all sensors within a radius
+         * (great-circle distance) around a location
+         */
+        public int[] near(double lat, double lon, double radiusKm) {
+            double latDelta = Math.toDegrees(radiusKm / EARTH_RADIUS_KM);
+            double latMin = lat - latDelta;
+            double latMax = lat + latDelta;
+            double lonMin = -180;
+            double lonMax = 180;
+
+            // a radius around a pole or across the antimeridian needs all longitudes
+            double cosLat = Math.cos(Math.toRadians(Math.max(Math.abs(latMin), Math.abs(latMax))));
+            if (latMin > -90 && latMax < 90 && cosLat > 0) {
+                double lonDelta = latDelta / cosLat;
+                if (lon - lonDelta >= -180 && lon + lonDelta <= 180) {
+                    lonMin = lon - lonDelta;
+                    lonMax = lon + lonDelta;
+                }
+            }
+
+            int[] candidates = within(latMin, latMax, lonMin, lonMax);
+            int count = 0;
+            for (int i : candidates) {
+                if (distanceKm(lat, lon, lats[i], lons[i]) <= radiusKm) {
+                    candidates[count++] = i;
+                }
+            }
+            return Arrays.copyOf(candidates, count);
+        }
+
+        private static final double EARTH_RADIUS_KM = 6371.0;
+
+        private static double distanceKm(double lat1, double lon1, double lat2, double lon2) {
+            double dLat = Math.toRadians(lat2 - lat1);
+            double dLon = Math.toRadians(lon2 - lon1);
+            double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) + Math.cos(Math.toRadians(lat1))
+                    * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+            return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(a)));
+        }
+    }
+}
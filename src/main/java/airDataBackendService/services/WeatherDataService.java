@@ -2,7 +2,9 @@ package airDataBackendService.services;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.scheduling.annotation.Scheduled;
@@ -109,4 +111,19 @@ public class WeatherDataService {
 
 		return this.weatherReportRepository.getForecastFor(aSensorId, d);
 	}
+
+	/**
+	 * Returns the forecasts of a sensor between two hours (timestamps in seconds,
+	 * already rounded to the hour), mapped by their hour in milliseconds.
+	 */
+	public Map<Long, HourlyWeatherReport> getForecastsFor(String aSensorId, long aFromInSeconds, long aToInSeconds) {
+		List<HourlyWeatherReport> reports = this.weatherReportRepository.getForecastsBetween(aSensorId,
+				new Date(aFromInSeconds * 1000), new Date(aToInSeconds * 1000));
+
+		Map<Long, HourlyWeatherReport> result = new HashMap<Long, HourlyWeatherReport>();
+		for (HourlyWeatherReport report : reports) {
+			result.put(report.hour.getTime(), report);
+		}
+		return result;
+	}
 }
@@ -0,0 +1,109 @@
+package airDataBackendService.util;
+
+import java.util.Arrays;
+
+/**
+ * Hash map from long to long without boxing (open addressing with linear
+ * probing). Not thread-safe.
+ */
+public class LongLongHashMap {
+    private long[] keys;
+    private long[] values;
+    private boolean[] used;
+    private int size = 0;
+
+    public LongLongHashMap() {
+        this(16);
+    }
+
+    public LongLongHashMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2) {
+            capacity *= 2;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new long[capacity];
+        used = new boolean[capacity];
+    }
+
+    private int slot(long key) {
+        // spread the bits (finalizer of MurmurHash3), the ids are mostly consecutive
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+
+        int mask = keys.length - 1;
+        int i = (int) h & mask;
+        while (used[i] && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    public boolean containsKey(long key) {
+        return used[slot(key)];
+    }
+
+    /**
+     * Returns the value for the key or defaultValue if there is none
+     */
+    public long get(long key, long defaultValue) {
+        int i = slot(key);
+        return used[i] ? values[i] : defaultValue;
+    }
+
+    public void put(long key, long value) {
+        int i = slot(key);
+        if (!used[i]) {
+            if ((size + 1) * 2 > keys.length) {
+                resize();
+                i = slot(key);
+            }
+            used[i] = true;
+            keys[i] = key;
+            size++;
+        }
+        values[i] = value;
+    }
+
+    /**
+     * Stores the value if there is no value for the key yet or if it is larger
+     * than the current one
+     */
+    public void putMax(long key, long value) {
+        int i = slot(key);
+        if (!used[i] || values[i] < value) {
+            put(key, value);
+        }
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        boolean[] oldUsed = used;
+
+        allocate(keys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) {
+                int j = slot(oldKeys[i]);
+                used[j] = true;
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+}
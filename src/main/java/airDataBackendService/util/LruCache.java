@@ -0,0 +1,123 @@
+package airDataBackendService.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Thread-safe least-recently-used cache that is bounded by the total weight of
+ * its values (e.g. their size in bytes) instead of the number of entries.
+ *
+ * The most recently used entry is always kept, even if it alone exceeds the
+ * maximum weight.
+ */
+public class LruCache<K, V> {
+    private final LinkedHashMap<K, V> entries = new LinkedHashMap<K, V>(16, 0.75f, true);
+    private final Map<K, FutureTask<V>> loading = new ConcurrentHashMap<K, FutureTask<V>>();
+    private final ToLongFunction<? super V> weigher;
+    private final long maxWeight;
+
+    private long weight = 0;
+    private long invalidations = 0;
+
+    public LruCache(long maxWeight, ToLongFunction<? super V> weigher) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+    }
+
+    public synchronized V getIfPresent(K key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Returns the cached value for the key or computes it using the loader.
+     * Concurrent calls for the same key share a single load. Null values are not
+     * cached.
+     */
+    public V get(K key, Function<? super K, ? extends V> loader) {
+        V value = getIfPresent(key);
+        if (value != null) {
+            return value;
+        }
+
+        long invalidationsBeforeLoad;
+        synchronized (this) {
+            invalidationsBeforeLoad = invalidations;
+        }
+
+        FutureTask<V> task = new FutureTask<V>(() -> loader.apply(key));
+        FutureTask<V> running = loading.putIfAbsent(key, task);
+        if (running == null) {
+            running = task;
+            task.run();
+        }
+
+        try {
+            value = running.get();
+
+            if (running == task && value != null) {
+                synchronized (this) {
+                    // don't cache values that have been loaded before an invalidation
+                    if (invalidations == invalidationsBeforeLoad) {
+                        put(key, value);
+                    }
+                }
+            }
+            return value;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            if (running == task) {
+                loading.remove(key, task);
+            }
+        }
+    }
+
+    public synchronized void put(K key, V value) {
+        V previous = entries.put(key, value);
+        if (previous != null) {
+            weight -= weigher.applyAsLong(previous);
+        }
+        weight += weigher.applyAsLong(value);
+
+        Iterator<Map.Entry<K, V>> it = entries.entrySet().iterator();
+        while (weight > maxWeight && entries.size() > 1) {
+            Map.Entry<K, V> eldest = it.next();
+            weight -= weigher.applyAsLong(eldest.getValue());
+            it.remove();
+        }
+    }
+
+    public synchronized void invalidate(K key) {
+        V previous = entries.remove(key);
+        if (previous != null) {
+            weight -= weigher.applyAsLong(previous);
+        }
+        invalidations++;
+    }
+
+    public synchronized void invalidateAll() {
+        entries.clear();
+        weight = 0;
+        invalidations++;
+    }
+
+    public synchronized long weight() {
+        return weight;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
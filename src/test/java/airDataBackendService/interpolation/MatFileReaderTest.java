@@ -0,0 +1,126 @@
+package airDataBackendService.interpolation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+
+import org.junit.Test;
+
+/**
+ * The fixtures contain a 20 x 30 grid_P1 and grid_P2, grid.mat as plain
+ * miMATRIX elements and grid-compressed.mat as miCOMPRESSED elements. The
+ * value at row i and column j is (k + 1) * 1000 + i + j / 1000 (k = 0 for P1,
+ * 1 for P2) or NaN if (i + j) % 17 == 0.
+ *
+ * In grid-P1-corrupt.mat the compressed grid_P1 element is only a valid
+ * deflate stream as far as its first values, grid_P2 is intact.
+ */
+public class MatFileReaderTest {
+
+	private static final int ROWS = 20;
+	private static final int COLS = 30;
+
+	private static double expected(int k, int i, int j) {
+		return (i + j) % 17 == 0 ? Double.NaN : (k + 1) * 1000 + i + j / 1000.0;
+	}
+
+	private static void assertGrid(int k, MatFileReader.MLDouble grid) {
+		assertNotNull(grid);
+		assertEquals(ROWS, grid.getM());
+		assertEquals(COLS, grid.getN());
+
+		double[] values = grid.getRealArray();
+		assertEquals(ROWS * COLS, values.length);
+		for (int j = 0; j < COLS; j++) {
+			for (int i = 0; i < ROWS; i++) {
+				assertEquals("(" + i + ", " + j + ")", expected(k, i, j), values[i + j * ROWS], 0);
+			}
+		}
+	}
+
+	private InputStream open(String name) {
+		InputStream in = getClass().getResourceAsStream("/heatmaps/" + name);
+		assertNotNull(name, in);
+		return in;
+	}
+
+	@Test
+	public void readsUncompressedStream() throws IOException {
+		try (InputStream in = open("grid.mat")) {
+			MatFileReader reader = new MatFileReader(in);
+			assertGrid(0, reader.getMLArray("grid_P1"));
+			assertGrid(1, reader.getMLArray("grid_P2"));
+		}
+	}
+
+	@Test
+	public void readsCompressedStream() throws IOException {
+		try (InputStream in = open("grid-compressed.mat")) {
+			MatFileReader reader = new MatFileReader(in);
+			assertGrid(0, reader.getMLArray("grid_P1"));
+			assertGrid(1, reader.getMLArray("grid_P2"));
+		}
+	}
+
+	@Test
+	public void streamMatchesFileReader() throws Exception {
+		File file = new File(getClass().getResource("/heatmaps/grid.mat").toURI());
+		MatFileReader fromFile = new MatFileReader(file);
+
+		try (InputStream plain = open("grid.mat"); InputStream compressed = open("grid-compressed.mat")) {
+			MatFileReader fromPlain = new MatFileReader(plain);
+			MatFileReader fromCompressed = new MatFileReader(compressed);
+
+			for (String name : new String[] { "grid_P1", "grid_P2" }) {
+				double[] expected = fromFile.getMLArray(name).getRealArray();
+				assertArrayEquals(name, expected, fromPlain.getMLArray(name).getRealArray(), 0);
+				assertArrayEquals(name, expected, fromCompressed.getMLArray(name).getRealArray(), 0);
+			}
+		}
+	}
+
+	@Test
+	public void readsOnlyRequestedArray() throws IOException {
+		for (String fixture : new String[] { "grid.mat", "grid-compressed.mat" }) {
+			try (InputStream in = open(fixture)) {
+				MatFileReader reader = new MatFileReader(in, Collections.singleton("grid_P2"));
+				assertNull(fixture, reader.getMLArray("grid_P1"));
+				assertGrid(1, reader.getMLArray("grid_P2"));
+			}
+
+			try (InputStream in = open(fixture)) {
+				MatFileReader.MLDouble[] data = MatReader.read(in, "grid_P1");
+				assertEquals(1, data.length);
+				assertGrid(0, data[0]);
+			}
+		}
+	}
+
+	@Test
+	public void doesNotInflateUnrequestedArrays() throws IOException {
+		// grid_P1 can only be skipped without inflating the rest of it
+		try (InputStream in = open("grid-P1-corrupt.mat")) {
+			MatFileReader reader = new MatFileReader(in, Collections.singleton("grid_P2"));
+			assertNull(reader.getMLArray("grid_P1"));
+			assertGrid(1, reader.getMLArray("grid_P2"));
+		}
+	}
+
+	@Test
+	public void singleGridMatAccess() throws IOException {
+		try (InputStream full = open("grid-compressed.mat"); InputStream single = open("grid-compressed.mat")) {
+			MatAccess both = new MatAccess(full);
+			MatAccess p2 = new MatAccess(single, true);
+
+			assertEquals(true, p2.hasGrid(true));
+			assertEquals(false, p2.hasGrid(false));
+			assertEquals(both.sizeInBytes() / 2, p2.sizeInBytes());
+		}
+	}
+}
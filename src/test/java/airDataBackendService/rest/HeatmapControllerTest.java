@@ -0,0 +1,122 @@
+package airDataBackendService.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import airDataBackendService.interpolation.MatAccess;
+import airDataBackendService.services.CompressedResponseCache;
+import airDataBackendService.services.HeatmapService;
+
+@RunWith(SpringRunner.class)
+@WebMvcTest(HeatmapController.class)
+@TestPropertySource(properties = "secrets.apiKey=test")
+public class HeatmapControllerTest {
+
+	@Autowired
+	private MockMvc mvc;
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	@MockBean
+	private HeatmapService heatmapService;
+
+	@MockBean
+	private CompressedResponseCache compressedResponseCache;
+
+	private MatAccess heatmap;
+
+	@Before
+	public void setUp() throws IOException {
+		try (InputStream in = getClass().getResourceAsStream("/heatmaps/grid.mat")) {
+			heatmap = new MatAccess(in);
+		}
+
+		given(heatmapService.getUploadTime(3600)).willReturn(1000L);
+		given(heatmapService.getHeatmap(anyLong(), eq(true), anyInt())).willReturn(heatmap);
+	}
+
+	private String expectedPoints() throws IOException {
+		StringWriter out = new StringWriter();
+		try (JsonGenerator gen = objectMapper.getFactory().createGenerator(out)) {
+			heatmap.writePointArray(gen, 16, 55, 5, 47, 20000, true, true);
+		}
+		return out.toString();
+	}
+
+	@Test
+	public void streamsJsonWithoutGzip() throws Exception {
+		MvcResult result = mvc.perform(get("/heatmap/").param("timestamp", "3600").param("type", "p25"))
+				.andExpect(request().asyncStarted()).andReturn();
+
+		MvcResult response = mvc.perform(asyncDispatch(result)).andExpect(status().isOk())
+				.andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+				.andExpect(header().string(HttpHeaders.ETAG, "\"heatmap-3600-1000-json\"")).andReturn();
+
+		assertNull(response.getResponse().getHeader(HttpHeaders.CONTENT_ENCODING));
+		assertEquals(expectedPoints(), response.getResponse().getContentAsString());
+		verifyZeroInteractions(compressedResponseCache);
+	}
+
+	@Test
+	public void answersNotModified() throws Exception {
+		mvc.perform(get("/heatmap/").param("timestamp", "3600").param("type", "p25")
+				.header(HttpHeaders.IF_NONE_MATCH, "\"heatmap-3600-1000-json\"")).andExpect(status().isNotModified());
+	}
+
+	@Test
+	public void gzipHasItsOwnETag() throws Exception {
+		byte[] compressed = new byte[] { 1, 2, 3 };
+		given(compressedResponseCache.get(anyString(), any(CompressedResponseCache.BodyWriter.class)))
+				.willReturn(compressed);
+
+		// the identity tag doesn't match the compressed body
+		MvcResult result = mvc.perform(get("/heatmap/").param("timestamp", "3600").param("type", "p25")
+				.header(HttpHeaders.ACCEPT_ENCODING, "gzip")
+				.header(HttpHeaders.IF_NONE_MATCH, "\"heatmap-3600-1000-json\"")).andExpect(request().asyncStarted())
+				.andReturn();
+
+		mvc.perform(asyncDispatch(result)).andExpect(status().isOk())
+				.andExpect(header().string(HttpHeaders.ETAG, "\"heatmap-3600-1000-json-gzip\""))
+				.andExpect(header().string(HttpHeaders.CONTENT_ENCODING, "gzip"))
+				.andExpect(content().bytes(compressed));
+
+		mvc.perform(get("/heatmap/").param("timestamp", "3600").param("type", "p25")
+				.header(HttpHeaders.ACCEPT_ENCODING, "gzip")
+				.header(HttpHeaders.IF_NONE_MATCH, "\"heatmap-3600-1000-json-gzip\""))
+				.andExpect(status().isNotModified());
+	}
+}
@@ -0,0 +1,113 @@
+package airDataBackendService.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import airDataBackendService.database.Measurement;
+
+/**
+ * Compares AirDataHandlerService.isContinuous with the previous
+ * implementation, which searched all measurements for every hour.
+ */
+public class ContinuityTest {
+
+	private static final long START = 1600000000L;
+
+	private static final long OFFSET = 3 * 60 * 60;
+
+	/**
+	 * The previous implementation, the measurements don't have to be sorted
+	 */
+	private static Result reference(List<Measurement> measurements, long startTimeInSeconds) {
+		long endTimeInSeconds = startTimeInSeconds - 7 * 24 * 60 * 60;
+
+		for (long i = startTimeInSeconds; i >= endTimeInSeconds; i -= 60 * 60) {
+			boolean found = false;
+			for (Measurement m : measurements) {
+				if (Math.abs(m.timestamp - i) <= OFFSET) {
+					found = true;
+					break;
+				}
+			}
+			if (!found) {
+				return new Result(false, "No measurements found for timestamp: " + i + " within +-" + OFFSET
+						+ " seconds (" + OFFSET / 3600 + " hours)");
+			}
+		}
+
+		return new Result(true, "");
+	}
+
+	private static Measurement measurement(long timestamp) {
+		Measurement m = new Measurement();
+		m.timestamp = timestamp;
+		return m;
+	}
+
+	private static void assertSameResult(List<Measurement> measurements, long start) {
+		Result expected = reference(measurements, start);
+		Result actual = AirDataHandlerService.isContinuous(new MeasurementSeries(measurements), start);
+
+		assertEquals(expected.getResult(), actual.getResult());
+		assertEquals(expected.getReason(), actual.getReason());
+	}
+
+	@Test
+	public void emptyIsNotContinuous() {
+		Result result = AirDataHandlerService.isContinuous(new MeasurementSeries(new ArrayList<Measurement>()), START);
+		assertFalse(result.getResult());
+		assertSameResult(new ArrayList<Measurement>(), START);
+	}
+
+	@Test
+	public void gapsAtTheLimit() {
+		// one measurement every 6 hours covers every hour within +-3 hours
+		List<Measurement> measurements = new ArrayList<Measurement>();
+		for (long t = START + OFFSET; t >= START - 7 * 24 * 60 * 60 - OFFSET; t -= 2 * OFFSET) {
+			measurements.add(measurement(t));
+		}
+		assertTrue(AirDataHandlerService.isContinuous(new MeasurementSeries(measurements), START).getResult());
+		assertSameResult(measurements, START);
+
+		// the hour between two measurements is exactly 3 hours away from both, moving
+		// them apart by a second each leaves it uncovered
+		measurements.set(10, measurement(measurements.get(10).timestamp + 1));
+		measurements.set(11, measurement(measurements.get(11).timestamp - 1));
+		assertFalse(AirDataHandlerService.isContinuous(new MeasurementSeries(measurements), START).getResult());
+		assertSameResult(measurements, START);
+	}
+
+	@Test
+	public void sameResultAsReference() {
+		Random random = new Random(1);
+
+		for (int k = 0; k < 20000; k++) {
+			List<Measurement> measurements = new ArrayList<Measurement>();
+
+			if (random.nextBoolean()) {
+				// a few random measurements around the week
+				int n = random.nextInt(60);
+				for (int i = 0; i < n; i++) {
+					measurements.add(measurement(START - random.nextInt(8 * 24 * 3600) + random.nextInt(4 * 3600)));
+				}
+			} else {
+				// a measurement every 5 minutes with some of them moved into the past
+				for (int i = 0; i < 2000; i++) {
+					long shift = random.nextInt(50) == 0 ? random.nextInt(20000) : 0;
+					measurements.add(measurement(START + OFFSET - i * 300 - shift));
+				}
+				Collections.shuffle(measurements, random);
+			}
+
+			assertSameResult(measurements, START);
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package airDataBackendService.services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import airDataBackendService.database.Measurement;
+
+public class MeasurementSeriesTest {
+
+	private static Measurement measurement(long timestamp, double p10) {
+		Measurement m = new Measurement();
+		m.timestamp = timestamp;
+		m.p10 = p10;
+		m.p25 = p10 * 2;
+		return m;
+	}
+
+	private static MeasurementSeries series(long... timestamps) {
+		List<Measurement> measurements = new ArrayList<Measurement>();
+		for (long t : timestamps) {
+			measurements.add(measurement(t, t));
+		}
+		return new MeasurementSeries(measurements);
+	}
+
+	/**
+	 * The previous implementation (a linear search that keeps the first of
+	 * equally close measurements). Returns null if there are no measurements.
+	 */
+	private static Measurement reference(List<Measurement> measurements, long timestamp) {
+		List<Measurement> sorted = new ArrayList<Measurement>(measurements);
+		sorted.sort(Comparator.comparingLong(m -> m.timestamp));
+
+		Measurement result = null;
+		for (Measurement m : sorted) {
+			if (result == null || Math.abs(result.timestamp - timestamp) > Math.abs(m.timestamp - timestamp)) {
+				result = m;
+			}
+		}
+		return result;
+	}
+
+	@Test
+	public void sortsByTimestamp() {
+		MeasurementSeries series = series(30, 10, 20);
+
+		assertArrayEquals(new long[] { 10, 20, 30 }, series.getTimestamps());
+		assertEquals(20, series.getMeasurement(1).timestamp);
+		assertEquals(20, series.getP10(1), 0);
+		assertEquals(40, series.getP25(1), 0);
+	}
+
+	@Test
+	public void emptySeries() {
+		assertEquals(-1, series().bestFit(100));
+	}
+
+	@Test
+	public void bestFit() {
+		MeasurementSeries series = series(100, 200, 300);
+
+		assertEquals(0, series.bestFit(0));
+		assertEquals(0, series.bestFit(100));
+		assertEquals(0, series.bestFit(149));
+		assertEquals(1, series.bestFit(151));
+		assertEquals(1, series.bestFit(200));
+		assertEquals(2, series.bestFit(1000));
+	}
+
+	@Test
+	public void tiesUseTheEarlierMeasurement() {
+		MeasurementSeries series = series(100, 200, 300);
+
+		assertEquals(0, series.bestFit(150));
+		assertEquals(1, series.bestFit(250));
+	}
+
+	@Test
+	public void sameResultAsReference() {
+		Random random = new Random(3);
+
+		for (int k = 0; k < 100000; k++) {
+			List<Measurement> measurements = new ArrayList<Measurement>();
+			int n = random.nextInt(20);
+			for (int i = 0; i < n; i++) {
+				measurements.add(measurement(random.nextInt(100), i));
+			}
+			Collections.shuffle(measurements, random);
+
+			long timestamp = random.nextInt(120) - 10;
+			MeasurementSeries series = new MeasurementSeries(measurements);
+			int bestFit = series.bestFit(timestamp);
+			Measurement expected = reference(measurements, timestamp);
+
+			if (expected == null) {
+				assertEquals(-1, bestFit);
+			} else {
+				// duplicate timestamps may belong to different measurements
+				assertEquals(expected.timestamp, series.getTimestamp(bestFit));
+			}
+		}
+	}
+
+	@Test
+	public void bestFitWithinWindow() {
+		MeasurementSeries series = series(100, 200, 300, 400);
+
+		// the closest measurement (100) is outside of the window
+		assertEquals(1, series.bestFit(120, 150, 400));
+		assertEquals(2, series.bestFit(500, 100, 350));
+		// the window bounds are inclusive
+		assertEquals(3, series.bestFit(390, 400, 400));
+		assertEquals(1, series.bestFit(250, 200, 300));
+		// no measurement within the window
+		assertEquals(-1, series.bestFit(250, 210, 290));
+		assertEquals(-1, series.bestFit(250, 300, 200));
+	}
+
+	@Test
+	public void windowedSameResultAsReference() {
+		Random random = new Random(4);
+
+		for (int k = 0; k < 100000; k++) {
+			List<Measurement> measurements = new ArrayList<Measurement>();
+			int n = random.nextInt(20);
+			for (int i = 0; i < n; i++) {
+				measurements.add(measurement(random.nextInt(100), i));
+			}
+
+			long timestamp = random.nextInt(120) - 10;
+			long from = random.nextInt(120) - 10;
+			long to = from + random.nextInt(60) - 5;
+
+			List<Measurement> window = new ArrayList<Measurement>();
+			for (Measurement m : measurements) {
+				if (m.timestamp >= from && m.timestamp <= to) {
+					window.add(m);
+				}
+			}
+
+			MeasurementSeries series = new MeasurementSeries(measurements);
+			int bestFit = series.bestFit(timestamp, from, to);
+			Measurement expected = reference(window, timestamp);
+
+			if (expected == null) {
+				assertEquals(-1, bestFit);
+			} else {
+				assertEquals(expected.timestamp, series.getTimestamp(bestFit));
+			}
+		}
+	}
+}